@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.Attachment;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.MoleculeInfo;
+
+/**
+ * {@code AdditiveMoleculeInfo} sums up the MoleculeInfo of a polymer from the cached MoleculeInfo of its capped
+ * monomers, minus the leaving groups of every connection. The polymer itself is never assembled.
+ * <p>
+ * Formulas are expected as plain element counts, e.g. C21H28N6O4S, and are returned in Hill order.
+ *
+ * @author chistyakov
+ */
+public class AdditiveMoleculeInfo {
+
+  private final ChemaxonManipulator manipulator;
+
+  private final Map<String, Integer> elements = new TreeMap<>();
+
+  private double molecularWeight;
+
+  private double exactMass;
+
+  /**
+   * @param manipulator manipulator holding the cached monomer and leaving group values
+   */
+  public AdditiveMoleculeInfo(ChemaxonManipulator manipulator) {
+    this.manipulator = manipulator;
+  }
+
+  /**
+   * adds a monomer with all R-groups capped
+   *
+   * @param id monomer id, the key of the cached values
+   * @param monomer monomer with attachments
+   * @return this
+   * @throws CTKException if the monomer can not be analysed
+   */
+  public AdditiveMoleculeInfo addMonomer(String id, AbstractMolecule monomer) throws CTKException {
+    return add(manipulator.getMonomerInfo(id, monomer));
+  }
+
+  /**
+   * removes the leaving groups of a connection between two R-groups
+   *
+   * @param first attachment of the first R-group
+   * @param second attachment of the second R-group
+   * @return this
+   * @throws CTKException if a cap group can not be analysed
+   */
+  public AdditiveMoleculeInfo addConnection(Attachment first, Attachment second) throws CTKException {
+    subtract(manipulator.getLeavingGroupInfo(first));
+    return subtract(manipulator.getLeavingGroupInfo(second));
+  }
+
+  /**
+   * @param info values to add
+   * @return this
+   * @throws CTKException if the formula can not be read
+   */
+  public AdditiveMoleculeInfo add(MoleculeInfo info) throws CTKException {
+    sum(info, 1);
+    return this;
+  }
+
+  /**
+   * @param info values to subtract
+   * @return this
+   * @throws CTKException if the formula can not be read
+   */
+  public AdditiveMoleculeInfo subtract(MoleculeInfo info) throws CTKException {
+    sum(info, -1);
+    return this;
+  }
+
+  /**
+   * @return the current sum
+   * @throws CTKException if an element count became negative
+   */
+  public MoleculeInfo getMoleculeInfo() throws CTKException {
+    MoleculeInfo info = new MoleculeInfo();
+    info.setMolecularFormula(toHillFormula(elements));
+    info.setMolecularWeight(molecularWeight);
+    info.setExactMass(exactMass);
+    return info;
+  }
+
+  private void sum(MoleculeInfo info, int sign) throws CTKException {
+    String formula = info.getMolecularFormula();
+    int i = 0;
+    while (i < formula.length()) {
+      int start = i;
+      if (!Character.isUpperCase(formula.charAt(i))) {
+        throw new CTKException("unsupported molecular formula " + formula);
+      }
+      i++;
+      while (i < formula.length() && Character.isLowerCase(formula.charAt(i))) {
+        i++;
+      }
+      String element = formula.substring(start, i);
+      int count = 0;
+      while (i < formula.length() && Character.isDigit(formula.charAt(i))) {
+        count = count * 10 + formula.charAt(i) - '0';
+        i++;
+      }
+      if (count == 0) {
+        count = 1;
+      }
+      Integer current = elements.get(element);
+      elements.put(element, (current == null ? 0 : current) + sign * count);
+    }
+    molecularWeight += sign * info.getMolecularWeight();
+    exactMass += sign * info.getExactMass();
+  }
+
+  private static String toHillFormula(Map<String, Integer> elements) throws CTKException {
+    StringBuilder sb = new StringBuilder();
+    boolean carbon = elements.containsKey("C") && elements.get("C") > 0;
+    if (carbon) {
+      appendElement(sb, "C", elements.get("C"));
+      if (elements.containsKey("H")) {
+        appendElement(sb, "H", elements.get("H"));
+      }
+    }
+    for (Map.Entry<String, Integer> entry : elements.entrySet()) {
+      if (!carbon || !(entry.getKey().equals("C") || entry.getKey().equals("H"))) {
+        appendElement(sb, entry.getKey(), entry.getValue());
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void appendElement(StringBuilder sb, String element, int count) throws CTKException {
+    if (count < 0) {
+      throw new CTKException("negative count of " + element);
+    }
+    if (count > 0) {
+      sb.append(element);
+      if (count > 1) {
+        sb.append(count);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator;
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code ChainAssembly} assembles a multi-chain structure. Every chain is built by its own sequence of merges on a
+ * worker thread, the connections between the chains are applied afterwards on the calling thread.
+ * <p>
+ * R-group atoms are referenced by the {@link IAtomBase} objects taken from the monomers before the assembly, in the
+ * same way as for {@link AbstractChemistryManipulator#merge}. The monomers of a chain must not be shared with other
+ * chains.
+ *
+ * @author chistyakov
+ */
+public class ChainAssembly {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(ChainAssembly.class);
+
+  private final AbstractChemistryManipulator manipulator;
+
+  private final List<Chain> chains = new ArrayList<>();
+
+  private final List<IAtomBase[]> connections = new ArrayList<>();
+
+  /**
+   * @param manipulator manipulator used for all merges
+   */
+  public ChainAssembly(AbstractChemistryManipulator manipulator) {
+    this.manipulator = manipulator;
+  }
+
+  /**
+   * starts a new chain
+   *
+   * @param first first monomer of the chain
+   * @return the chain to append further monomers to
+   */
+  public Chain addChain(AbstractMolecule first) {
+    Chain chain = new Chain(first);
+    chains.add(chain);
+    return chain;
+  }
+
+  /**
+   * adds a connection between two chains or a cycle within one chain, applied after all chains are built
+   *
+   * @param rgroup1 R-group atom of the first monomer
+   * @param rgroup2 R-group atom of the second monomer
+   */
+  public void addConnection(IAtomBase rgroup1, IAtomBase rgroup2) {
+    connections.add(new IAtomBase[] {rgroup1, rgroup2});
+  }
+
+  /**
+   * assembles the structure on a temporary pool with one thread per chain, limited by the number of processors
+   *
+   * @return assembled molecule
+   * @throws CTKException if a merge failed
+   */
+  public AbstractMolecule assemble() throws CTKException {
+    int threads = Math.max(1, Math.min(chains.size(), Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      return assemble(executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * assembles the structure, the chains are built concurrently on the given executor
+   *
+   * @param executor executor for the chains
+   * @return assembled molecule
+   * @throws CTKException if a merge failed or the structure is not connected
+   */
+  public AbstractMolecule assemble(ExecutorService executor) throws CTKException {
+    if (chains.isEmpty()) {
+      throw new CTKException("no chains to assemble");
+    }
+    Map<IAtomBase, Integer> chainOfAtom = new IdentityHashMap<>();
+    for (int i = 0; i < chains.size(); i++) {
+      for (AbstractMolecule monomer : chains.get(i).monomers) {
+        for (IAtomBase atom : monomer.getIAtomArray()) {
+          chainOfAtom.put(atom, i);
+        }
+      }
+    }
+
+    AbstractMolecule[] built = build(executor);
+
+    UnionFind merged = new UnionFind(built.length);
+    for (IAtomBase[] connection : connections) {
+      Integer chain1 = chainOfAtom.get(connection[0]);
+      Integer chain2 = chainOfAtom.get(connection[1]);
+      if (chain1 == null || chain2 == null) {
+        throw new CTKException("connection atom does not belong to any chain");
+      }
+      int root1 = merged.find(chain1);
+      int root2 = merged.find(chain2);
+      AbstractMolecule second = root1 == root2 ? built[root1] : built[root2];
+      built[root1] = manipulator.merge(built[root1], connection[0], second, connection[1]);
+      merged.join(root1, root2);
+    }
+
+    if (!merged.isConnected()) {
+      throw new CTKException("chains are not connected");
+    }
+    return built[merged.find(0)];
+  }
+
+  private AbstractMolecule[] build(ExecutorService executor) throws CTKException {
+    AbstractMolecule[] built = new AbstractMolecule[chains.size()];
+    if (chains.size() == 1) {
+      built[0] = chains.get(0).build();
+      return built;
+    }
+
+    List<Callable<AbstractMolecule>> tasks = new ArrayList<>(chains.size());
+    for (final Chain chain : chains) {
+      tasks.add(new Callable<AbstractMolecule>() {
+        @Override
+        public AbstractMolecule call() throws CTKException {
+          return chain.build();
+        }
+      });
+    }
+    built = Tasks.invokeAll(executor, tasks, "chain assembly").toArray(built);
+    LOG.debug("built " + built.length + " chains");
+    return built;
+  }
+
+  /**
+   * {@code Chain} is a linear sequence of merges, built on one worker thread
+   */
+  public final class Chain {
+
+    private final List<AbstractMolecule> monomers = new ArrayList<>();
+
+    private final List<IAtomBase[]> links = new ArrayList<>();
+
+    private Chain(AbstractMolecule first) {
+      monomers.add(first);
+    }
+
+    /**
+     * appends a monomer to the chain
+     *
+     * @param chainRgroup R-group atom of a monomer already in the chain
+     * @param monomer monomer to append
+     * @param monomerRgroup R-group atom of the appended monomer
+     * @return this chain
+     */
+    public Chain append(IAtomBase chainRgroup, AbstractMolecule monomer, IAtomBase monomerRgroup) {
+      monomers.add(monomer);
+      links.add(new IAtomBase[] {chainRgroup, monomerRgroup});
+      return this;
+    }
+
+    private AbstractMolecule build() throws CTKException {
+      AbstractMolecule molecule = monomers.get(0);
+      for (int i = 0; i < links.size(); i++) {
+        IAtomBase[] link = links.get(i);
+        molecule = manipulator.merge(molecule, link[0], monomers.get(i + 1), link[1]);
+      }
+      return molecule;
+    }
+  }
+
+}
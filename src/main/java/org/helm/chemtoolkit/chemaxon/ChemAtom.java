@@ -16,6 +16,8 @@
  ******************************************************************************/
 package org.helm.chemtoolkit.chemaxon;
 
+import java.util.Map;
+
 import org.helm.chemtoolkit.AbstractMolecule.Flag;
 import org.helm.chemtoolkit.IAtomBase;
 import org.helm.chemtoolkit.IBondBase;
@@ -30,9 +32,28 @@ public class ChemAtom extends IAtomBase {
 
   private MolAtom atom;
 
+  /**
+   * molecule which has to be notified before the Marvin atom is handed out, may be null
+   */
+  private ChemMolecule owner;
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If the owning molecule still shares its structure with a clone, it is copied first.
+   */
   @Override
   public MolAtom getMolAtom() {
+    if (owner != null) {
+      owner.ensureOwned();
+    }
+    return atom;
+  }
 
+  /**
+   * @return the Marvin atom for reading only, without copying a shared molecule
+   */
+  MolAtom peekMolAtom() {
     return atom;
   }
 
@@ -42,6 +63,27 @@ public class ChemAtom extends IAtomBase {
 
   }
 
+  ChemAtom(MolAtom atom, ChemMolecule owner) {
+    this(atom);
+    this.owner = owner;
+  }
+
+  void setOwner(ChemMolecule owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * points this atom to the copy of its Marvin atom
+   * 
+   * @param copies copied atoms by original
+   */
+  void rebind(Map<MolAtom, MolAtom> copies) {
+    MolAtom copy = copies.get(atom);
+    if (copy != null) {
+      atom = copy;
+    }
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -81,7 +123,9 @@ public class ChemAtom extends IAtomBase {
    */
   @Override
   public IBondBase getIBond(int arg0) {
-    return new ChemBond(atom.getBond(arg0));
+    ChemBond bond = new ChemBond(getMolAtom().getBond(arg0));
+    bond.setOwner(owner);
+    return bond;
   }
 
   /*
@@ -97,6 +141,8 @@ public class ChemAtom extends IAtomBase {
 
   /**
    * {@inheritDoc}
+   * <p>
+   * Only reads the Marvin atoms, a shared molecule is not copied.
    */
   @Override
   public boolean compare(Object obj) {
@@ -104,8 +150,8 @@ public class ChemAtom extends IAtomBase {
       return false;
     }
 
-    MolAtom toCompare = ((ChemAtom) obj).getMolAtom();
-    return atom.equals(toCompare);
+    MolAtom toCompare = ((ChemAtom) obj).peekMolAtom();
+    return peekMolAtom().equals(toCompare);
   }
 
   /**
@@ -113,7 +159,7 @@ public class ChemAtom extends IAtomBase {
    */
   @Override
   public void setRgroup(int rGroup) {
-    atom.setRgroup(rGroup);
+    getMolAtom().setRgroup(rGroup);
     this.flag = Flag.PROCESSED;
 
   }
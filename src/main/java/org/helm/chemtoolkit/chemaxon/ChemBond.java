@@ -16,6 +16,8 @@
  ******************************************************************************/
 package org.helm.chemtoolkit.chemaxon;
 
+import java.util.Map;
+
 import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.IStereoElementBase;
 
@@ -31,6 +33,11 @@ public class ChemBond implements IBondBase {
 
   private ChemStereoElement stereoElement;
 
+  /**
+   * molecule which has to be notified before the Marvin bond is handed out, may be null
+   */
+  private ChemMolecule owner;
+
   /**
    * @param bond chemical bond
    */
@@ -50,7 +57,7 @@ public class ChemBond implements IBondBase {
    */
   @Override
   public ChemAtom getIAtom1() {
-    return new ChemAtom(bond.getAtom1());
+    return new ChemAtom(getMolBond().getAtom1(), owner);
   }
 
   /**
@@ -59,17 +66,35 @@ public class ChemBond implements IBondBase {
    */
   @Override
   public ChemAtom getIAtom2() {
-    return new ChemAtom(bond.getAtom2());
+    return new ChemAtom(getMolBond().getAtom2(), owner);
   }
 
   /**
    * @return bond
    */
   public MolBond getMolBond() {
-
+    if (owner != null) {
+      owner.ensureOwned();
+    }
     return bond;
   }
 
+  void setOwner(ChemMolecule owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * points this bond to the copy of its Marvin bond
+   * 
+   * @param copies copied bonds by original
+   */
+  void rebind(Map<MolBond, MolBond> copies) {
+    MolBond copy = copies.get(bond);
+    if (copy != null) {
+      bond = copy;
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -16,11 +16,20 @@
  ******************************************************************************/
 package org.helm.chemtoolkit.chemaxon;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.Attachment;
 import org.helm.chemtoolkit.AttachmentList;
 import org.helm.chemtoolkit.CTKException;
 import org.helm.chemtoolkit.IAtomBase;
@@ -42,8 +51,35 @@ public class ChemMolecule extends AbstractMolecule {
 
   private Molecule molecule;
 
+  /**
+   * read-only bond wrappers, built on demand and dropped whenever the graph is changed through this class
+   */
+  private List<IBondBase> bonds;
+
+  /**
+   * true if the molecule was dearomatized and neither the graph was changed nor a Marvin object was handed out since
+   */
+  private boolean kekule;
+
+  /**
+   * set while the underlying molecule is shared with clones, see {@link #cloneMolecule()}
+   */
+  private volatile Share share;
+
+  /**
+   * entry of this molecule in its {@link #share}
+   */
+  private Reference<ChemMolecule> holder;
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The molecule is copied first if it is still shared with a clone, as the caller may modify it. For the same reason
+   * the Kekule state is forgotten, the next {@link #dearomatize()} runs again.
+   */
   @Override
   public Molecule getMolecule() {
+    ensureOwned();
     return this.molecule;
   }
 
@@ -56,7 +92,7 @@ public class ChemMolecule extends AbstractMolecule {
     this(molecule);
     atoms = new ArrayList<>();
     for (MolAtom a : molecule.getAtomArray())
-      atoms.add(new ChemAtom(a));
+      atoms.add(new ChemAtom(a, this));
     if (attachments != null) {
       this.attachments =
           attachments.cloneList();
@@ -74,8 +110,10 @@ public class ChemMolecule extends AbstractMolecule {
   public void removeINode(IAtomBase node) throws CTKException {
     if (node instanceof ChemAtom) {
       if (atoms.contains(node)) {
+        ensureOwned();
         molecule.removeNode(((ChemAtom) node).getMolAtom());
         atoms.remove(node);
+        graphChanged();
       } else
         throw new CTKException("the atom not found in the molecule");
     } else
@@ -85,20 +123,25 @@ public class ChemMolecule extends AbstractMolecule {
   /**
    * 
    * {@inheritDoc}
+   * <p>
+   * A {@link ChemMolecule} is fused as a whole: all its atoms and bonds, including stereo bonds, are moved into this
+   * molecule in one step.
    */
   @Override
   public void addIBase(IChemObjectBase node) {
+    ensureOwned();
     if (node instanceof ChemMolecule) {
       ChemMolecule nodeMolecule = (ChemMolecule) node;
-      for (IAtomBase atom : nodeMolecule.getIAtomArray()) {
-        molecule.add(((ChemAtom) atom).getMolAtom());
-        atoms.add(atom);
-      }
-      for (MolBond bond : nodeMolecule.getMolecule().getBondArray()) {
-        molecule.add(bond);
+      nodeMolecule.ensureOwned();
+      List<IAtomBase> nodeAtoms = nodeMolecule.getIAtomArray();
+      molecule.fuse(nodeMolecule.molecule, false);
+      for (IAtomBase atom : nodeAtoms) {
+        ((ChemAtom) atom).setOwner(this);
       }
+      atoms.addAll(nodeAtoms);
     } else if (node instanceof ChemAtom) {
       molecule.add(((ChemAtom) node).getMolAtom());
+      ((ChemAtom) node).setOwner(this);
       atoms.add((ChemAtom) node);
     } else if (node instanceof ChemBond) {
       molecule.add(((ChemBond) node).getMolBond());
@@ -106,17 +149,25 @@ public class ChemMolecule extends AbstractMolecule {
     if (node instanceof ChemStereoElement) {
       molecule.add(((ChemStereoElement) node).getStereoElement());
     }
+    graphChanged();
 
   }
 
   /**
    * 
    * {@inheritDoc}
+   * <p>
+   * Does nothing if the molecule is already in Kekule form and was not changed since through this class.
    */
   @Override
   public void dearomatize() throws CTKException {
+    if (kekule) {
+      return;
+    }
+    unshare();
     try {
       molecule.dearomatize();
+      kekule = true;
     } catch (IllegalArgumentException e) {
       throw new CTKException(e.getMessage(), e);
     }
@@ -129,20 +180,31 @@ public class ChemMolecule extends AbstractMolecule {
    */
   @Override
   public Map<String, IAtomBase> getRgroups() throws CTKException {
-    molecule.dearomatize();
+    dearomatize();
     return super.getRgroups();
   }
 
   /**
    * 
    * {@inheritDoc}
+   * <p>
+   * The returned list is a read-only view which is reused until the graph is changed by
+   * {@link #addIBase(IChemObjectBase)}, {@link #removeIBase(IChemObjectBase)} or {@link #removeINode(IAtomBase)}.
+   * Changes made directly on the underlying {@link Molecule} are not tracked.
    */
   @Override
   public List<IBondBase> getIBondArray() {
-    MolBond[] parent = molecule.getBondArray();
-    List<IBondBase> target = new ArrayList<>();
-    for (int i = 0; i < parent.length; i++) {
-      target.add(new ChemBond(parent[i]));
+    List<IBondBase> target = bonds;
+    if (target == null) {
+      MolBond[] parent = molecule.getBondArray();
+      List<IBondBase> list = new ArrayList<>(parent.length);
+      for (int i = 0; i < parent.length; i++) {
+        ChemBond bond = new ChemBond(parent[i]);
+        bond.setOwner(this);
+        list.add(bond);
+      }
+      target = Collections.unmodifiableList(list);
+      bonds = target;
     }
     return target;
 
@@ -151,10 +213,29 @@ public class ChemMolecule extends AbstractMolecule {
   /**
    * 
    * {@inheritDoc}
+   * <p>
+   * The clone shares the underlying molecule with this one. Whichever of them is modified first through
+   * {@link #addIBase(IChemObjectBase)}, {@link #removeINode(IAtomBase)}, {@link #removeIBase(IChemObjectBase)},
+   * {@link #changeAtomLabel(int, int)} or by accessing the Marvin objects behind its atoms, bonds or the molecule
+   * itself, gets its own copy. The atoms of {@link #getIAtomArray()} and the bonds of {@link #getIBondArray()} are
+   * moved to that copy, other wrappers obtained before keep pointing to the shared molecule. The last holder takes
+   * over the shared molecule without copying; a clone which is dropped unmodified stops counting as a holder once it
+   * is garbage collected.
+   * <p>
+   * Cloning still creates the atom wrappers and copies the attachment list, which is linear in the number of atoms
+   * but much cheaper than copying the Marvin molecule.
    */
   @Override
-  public AbstractMolecule cloneMolecule() {
-    ChemMolecule cloned = new ChemMolecule(molecule.cloneMolecule(), attachments.cloneList());
+  public synchronized AbstractMolecule cloneMolecule() {
+    ChemMolecule cloned = new ChemMolecule(molecule, attachments);
+    cloned.kekule = kekule;
+    if (share == null) {
+      Share created = new Share();
+      holder = created.add(this);
+      share = created;
+    }
+    cloned.holder = share.add(cloned);
+    cloned.share = share;
 
     return cloned;
   }
@@ -164,6 +245,7 @@ public class ChemMolecule extends AbstractMolecule {
    */
   @Override
   public void generateCoordinates(int dem) throws CTKException {
+    unshare();
     molecule.clean(dem, null);
 
   }
@@ -191,7 +273,7 @@ public class ChemMolecule extends AbstractMolecule {
   @Override
   public boolean isSingleStereo(IAtomBase atom) throws CTKException {
     if (atom instanceof ChemAtom) {
-      MolAtom rAtom = (MolAtom) atom.getMolAtom();
+      MolAtom rAtom = ((ChemAtom) atom).peekMolAtom();
       int bondCount = rAtom.getBondCount();
       if (bondCount != 1) {
         throw new CTKException("RGroup is allowed to have single connection to other atom");
@@ -211,13 +293,171 @@ public class ChemMolecule extends AbstractMolecule {
    */
   @Override
   public void removeIBase(IChemObjectBase node) {
+    ensureOwned();
     if (node instanceof ChemBond) {
       molecule.removeEdge(((ChemBond) node).getMolBond());
     }
     if (node instanceof ChemStereoElement) {
       molecule.removeEdge(((ChemStereoElement) node).getStereoElement());
     }
+    graphChanged();
+
+  }
+
+  /**
+   * replaces the given R-group atom by an atom of the given element, keeping its bond and coordinates. This caps an
+   * unused R-group with a single atom (e.g. H or O) without merging a cap molecule. The attachment of the R-group is
+   * removed, as by a merge.
+   * 
+   * @param rGroup R-group atom of this molecule
+   * @param atno atomic number of the cap atom
+   * @throws CTKException if the atom is not an R-group atom of this molecule
+   */
+  public void replaceRgroup(IAtomBase rGroup, int atno) throws CTKException {
+    if (!(rGroup instanceof ChemAtom) || !atoms.contains(rGroup)) {
+      throw new CTKException("the atom not found in the molecule");
+    }
+    if (rGroup.getRgroup() == 0) {
+      throw new CTKException("the atom is not an R-group");
+    }
+    int rgroup = rGroup.getRgroup();
+    ensureOwned();
+    MolAtom atom = ((ChemAtom) rGroup).getMolAtom();
+    atom.setAtno(atno);
+    atom.setRgroup(0);
+    for (Iterator<Attachment> it = attachments.iterator(); it.hasNext();) {
+      if (getIdFromLabel(it.next().getLabel()) == rgroup) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * drops all state derived from the current graph
+   */
+  private void graphChanged() {
+    bonds = null;
+    kekule = false;
+  }
+
+  /**
+   * @return immutable copy of the current graph for read-only queries
+   */
+  public MoleculeSnapshot snapshot() {
+    return MoleculeSnapshot.of(this);
+  }
+
+  /**
+   * @return the underlying molecule for reading only, without copying it if it is shared
+   */
+  Molecule peekMolecule() {
+    return molecule;
+  }
+
+  /**
+   * @return the underlying molecule for changes which keep its bonds, e.g. cleaning and export; it is not shared and
+   *         the Kekule state is kept
+   */
+  Molecule ownedMolecule() {
+    unshare();
+    return molecule;
+  }
+
+  /**
+   * makes sure the underlying molecule is not shared with a clone any more before a Marvin object is handed out. The
+   * Kekule state is forgotten, as the caller may change the bonds.
+   */
+  void ensureOwned() {
+    unshare();
+    kekule = false;
+  }
+
+  /**
+   * makes sure the underlying molecule is not shared with a clone any more, copying it if necessary
+   */
+  private void unshare() {
+    if (share != null) {
+      copyShared();
+    }
+  }
+
+  private synchronized void copyShared() {
+    Share current = share;
+    if (current == null) {
+      return;
+    }
+    // Marvin does not promise that concurrent copies of one molecule are safe, the holders copy one at a time
+    synchronized (current) {
+      if (current.removeAndCheckOthers(holder)) {
+        copy();
+      }
+    }
+    holder = null;
+    share = null;
+  }
+
+  /**
+   * replaces the underlying molecule by a copy and moves the atom and bond wrappers to it
+   */
+  private void copy() {
+    Molecule copy = molecule.cloneMolecule();
+    Map<MolAtom, MolAtom> atomMap = new IdentityHashMap<>();
+    for (int i = 0; i < molecule.getAtomCount(); i++) {
+      atomMap.put(molecule.getAtom(i), copy.getAtom(i));
+    }
+    for (IAtomBase atom : atoms) {
+      ((ChemAtom) atom).rebind(atomMap);
+    }
+    if (bonds != null) {
+      Map<MolBond, MolBond> bondMap = new IdentityHashMap<>();
+      for (int i = 0; i < molecule.getBondCount(); i++) {
+        bondMap.put(molecule.getBond(i), copy.getBond(i));
+      }
+      for (IBondBase bond : bonds) {
+        ((ChemBond) bond).rebind(bondMap);
+      }
+    }
+    molecule = copy;
+  }
+
+  /**
+   * {@code Share} the molecules sharing one underlying Marvin molecule. They are held weakly, a holder which is
+   * garbage collected no longer forces the others to copy. Access is synchronized on the share.
+   */
+  private static final class Share {
+
+    private final ReferenceQueue<ChemMolecule> collected = new ReferenceQueue<>();
+
+    /** weak references have identity equality */
+    private final Set<Reference<ChemMolecule>> holders = new HashSet<>();
+
+    /**
+     * @return the reference to pass to {@link #removeAndCheckOthers(Reference)}
+     */
+    private synchronized Reference<ChemMolecule> add(ChemMolecule holder) {
+      purge();
+      Reference<ChemMolecule> reference = new WeakReference<>(holder, collected);
+      holders.add(reference);
+      return reference;
+    }
+
+    /**
+     * removes a holder, the caller synchronizes on the share
+     *
+     * @return true if other holders are still alive, i.e. the holder has to copy the molecule
+     */
+    private boolean removeAndCheckOthers(Reference<ChemMolecule> holder) {
+      holders.remove(holder);
+      purge();
+      return !holders.isEmpty();
+    }
 
+    private void purge() {
+      Reference<? extends ChemMolecule> reference;
+      while ((reference = collected.poll()) != null) {
+        holders.remove(reference);
+      }
+    }
   }
 
 }
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.helm.chemtoolkit.Attachment;
+import org.helm.chemtoolkit.AttachmentList;
+import org.helm.chemtoolkit.CTKException;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.MolBond;
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code ChemMoleculeCodec} writes a {@link ChemMolecule} in a compact binary form and reads it back without the text
+ * parser and without a new layout. Stored are the atoms with element, charge, mass number, radical, R-group number,
+ * alias, implicit hydrogen count and coordinates, the bonds with type and stereo flags, and the attachments. Explicit
+ * hydrogens are atoms of their own.
+ * <p>
+ * Stereo information is carried by the wedge flags of the bonds together with the coordinates, as in a molfile, so
+ * the molecule should have 2D coordinates, which all molecules created by {@link ChemaxonManipulator} have. Enhanced
+ * stereo groups, atom lists and other query properties are not stored; molecules with S-groups, e.g. abbreviated
+ * groups or polymer brackets, are rejected.
+ *
+ * @author chistyakov
+ */
+public final class ChemMoleculeCodec {
+
+  /** "HCM" followed by the format version */
+  private static final int MAGIC = 0x48434d02;
+
+  private ChemMoleculeCodec() {
+  }
+
+  /**
+   * @param molecule molecule to encode, not modified
+   * @return binary form of the molecule
+   * @throws CTKException if the molecule can not be encoded
+   */
+  public static byte[] encode(ChemMolecule molecule) throws CTKException {
+    Molecule mol = molecule.peekMolecule();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * mol.getAtomCount() + 16 * mol.getBondCount());
+    try {
+      write(molecule, new DataOutputStream(bytes));
+    } catch (IOException e) {
+      throw new CTKException("unable to encode molecule", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param data binary form written by {@link #encode(ChemMolecule)}
+   * @return decoded molecule
+   * @throws CTKException if the data is not a valid encoded molecule
+   */
+  public static ChemMolecule decode(byte[] data) throws CTKException {
+    try {
+      return read(new DataInputStream(new ByteArrayInputStream(data)));
+    } catch (IOException e) {
+      throw new CTKException("unable to decode molecule", e);
+    }
+  }
+
+  /**
+   * writes the molecule to a stream, e.g. to store several molecules in one file
+   *
+   * @param molecule molecule to write, not modified
+   * @param out target
+   * @throws IOException if the target can not be written
+   */
+  public static void write(ChemMolecule molecule, DataOutput out) throws IOException {
+    Molecule mol = molecule.peekMolecule();
+    if (mol.getSgroupCount() > 0) {
+      throw new IOException("molecules with S-groups can not be encoded");
+    }
+    int dim = mol.getDim();
+    out.writeInt(MAGIC);
+    out.writeByte(dim);
+
+    int atomCount = mol.getAtomCount();
+    Map<MolAtom, Integer> indexes = new IdentityHashMap<>(2 * atomCount);
+    out.writeInt(atomCount);
+    for (int i = 0; i < atomCount; i++) {
+      MolAtom atom = mol.getAtom(i);
+      indexes.put(atom, i);
+      out.writeShort(atom.getAtno());
+      out.writeByte(atom.getCharge());
+      out.writeShort(atom.getMassno());
+      out.writeByte(atom.getRadical());
+      out.writeShort(atom.getRgroup());
+      out.writeByte(atom.getImplicitHcount());
+      writeString(out, atom.getAliasstr());
+      out.writeDouble(atom.getX());
+      out.writeDouble(atom.getY());
+      if (dim == 3) {
+        out.writeDouble(atom.getZ());
+      }
+    }
+
+    out.writeInt(mol.getBondCount());
+    for (int i = 0; i < mol.getBondCount(); i++) {
+      MolBond bond = mol.getBond(i);
+      out.writeInt(indexes.get(bond.getAtom1()));
+      out.writeInt(indexes.get(bond.getAtom2()));
+      out.writeByte(bond.getType());
+      out.writeInt(bond.getFlags());
+    }
+
+    AttachmentList attachments = molecule.getAttachments();
+    out.writeInt(attachments == null ? 0 : attachments.size());
+    if (attachments != null) {
+      for (Attachment attachment : attachments) {
+        writeString(out, attachment.getAlternateId());
+        writeString(out, attachment.getLabel());
+        writeString(out, attachment.getCapGroupName());
+        writeString(out, attachment.getSmiles());
+      }
+    }
+  }
+
+  /**
+   * reads a molecule written by {@link #write(ChemMolecule, DataOutput)}
+   *
+   * @param in source
+   * @return molecule
+   * @throws IOException if the source can not be read or holds no valid molecule
+   */
+  public static ChemMolecule read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not an encoded molecule or unsupported version");
+    }
+    int dim = in.readByte();
+    Molecule mol = new Molecule();
+
+    int atomCount = in.readInt();
+    MolAtom[] atoms = new MolAtom[atomCount];
+    int[] hydrogens = new int[atomCount];
+    for (int i = 0; i < atomCount; i++) {
+      MolAtom atom = new MolAtom(in.readShort());
+      atom.setCharge(in.readByte());
+      atom.setMassno(in.readShort());
+      atom.setRadical(in.readByte());
+      atom.setRgroup(in.readShort());
+      hydrogens[i] = in.readByte();
+      String alias = readString(in);
+      if (alias != null) {
+        atom.setAliasstr(alias);
+      }
+      double x = in.readDouble();
+      double y = in.readDouble();
+      if (dim == 3) {
+        atom.setXYZ(x, y, in.readDouble());
+      } else {
+        atom.setXY(x, y);
+      }
+      mol.add(atom);
+      atoms[i] = atom;
+    }
+
+    int bondCount = in.readInt();
+    for (int i = 0; i < bondCount; i++) {
+      int atom1 = in.readInt();
+      int atom2 = in.readInt();
+      if (atom1 < 0 || atom1 >= atomCount || atom2 < 0 || atom2 >= atomCount) {
+        throw new IOException("invalid bond atom index");
+      }
+      int type = in.readByte();
+      MolBond bond = new MolBond(atoms[atom1], atoms[atom2]);
+      bond.setFlags(in.readInt());
+      bond.setType(type);
+      mol.add(bond);
+    }
+    mol.setDim(dim);
+    // only hydrogen counts which do not follow from the valence, e.g. of [nH], are fixed
+    for (int i = 0; i < atomCount; i++) {
+      if (atoms[i].getImplicitHcount() != hydrogens[i]) {
+        atoms[i].setImplicitHcount(hydrogens[i]);
+      }
+    }
+
+    int attachmentCount = in.readInt();
+    AttachmentList attachments = new AttachmentList();
+    for (int i = 0; i < attachmentCount; i++) {
+      attachments.add(new Attachment(readString(in), readString(in), readString(in), readString(in)));
+    }
+    return new ChemMolecule(mol, attachments);
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+}
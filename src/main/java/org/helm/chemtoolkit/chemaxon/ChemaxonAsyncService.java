@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.helm.chemtoolkit.MoleculeInfo;
+
+/**
+ * {@code ChemaxonAsyncService} runs the blocking operations of a {@link ChemaxonManipulator} on an executor and
+ * returns a {@link CompletableFuture} for each call, so callers never block on Marvin. A failed call completes the
+ * future exceptionally with the original exception, e.g. a {@link CTKException}.
+ * <p>
+ * The operations are CPU bound, so by default they run on a pool with one daemon thread per processor and any number
+ * of calls may wait in its queue without holding a thread. Any other executor can be passed instead, e.g. one
+ * starting a virtual thread per task on a Java runtime which has them.
+ *
+ * @author chistyakov
+ */
+public class ChemaxonAsyncService implements Closeable {
+
+  private final ChemaxonManipulator manipulator;
+
+  private final Executor executor;
+
+  /** executor created by this service, shut down on close */
+  private final ExecutorService ownExecutor;
+
+  /**
+   * @param manipulator manipulator doing the work, the default pool is used
+   */
+  public ChemaxonAsyncService(ChemaxonManipulator manipulator) {
+    this.manipulator = manipulator;
+    this.ownExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "chemaxon-async-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor = ownExecutor;
+  }
+
+  /**
+   * @param manipulator manipulator doing the work
+   * @param executor executor running the calls, not shut down by {@link #close()}
+   */
+  public ChemaxonAsyncService(ChemaxonManipulator manipulator, Executor executor) {
+    this.manipulator = manipulator;
+    this.executor = executor;
+    this.ownExecutor = null;
+  }
+
+  /**
+   * @return manipulator doing the work
+   */
+  public ChemaxonManipulator getManipulator() {
+    return manipulator;
+  }
+
+  /**
+   * @param data input data
+   * @param type type of the input data
+   * @return future of {@link ChemaxonManipulator#convert(String, StType)}
+   */
+  public CompletableFuture<String> convert(String data, StType type) {
+    return submit(() -> manipulator.convert(data, type));
+  }
+
+  /**
+   * @param smiles SMILES to canonicalize
+   * @return future of {@link ChemaxonManipulator#canonicalize(String)}
+   */
+  public CompletableFuture<String> canonicalize(String smiles) {
+    return submit(() -> manipulator.canonicalize(smiles));
+  }
+
+  /**
+   * @param smiles SMILES to validate
+   * @return future of {@link ChemaxonManipulator#validateSMILES(String)}
+   */
+  public CompletableFuture<Boolean> validateSMILES(String smiles) {
+    return submit(() -> manipulator.validateSMILES(smiles));
+  }
+
+  /**
+   * @param molecule molecule to analyse
+   * @return future of {@link ChemaxonManipulator#getMoleculeInfo(AbstractMolecule)}
+   */
+  public CompletableFuture<MoleculeInfo> getMoleculeInfo(AbstractMolecule molecule) {
+    return submit(() -> manipulator.getMoleculeInfo(molecule));
+  }
+
+  /**
+   * @param molFile molfile to render
+   * @param outputType image format
+   * @param width image width
+   * @param height image height
+   * @param rgb background color
+   * @return future of {@link ChemaxonManipulator#renderMol(String, OutputType, int, int, int)}
+   */
+  public CompletableFuture<byte[]> renderMol(String molFile, OutputType outputType, int width, int height, int rgb) {
+    return submit(() -> manipulator.renderMol(molFile, outputType, width, height, rgb));
+  }
+
+  /**
+   * The molecules must not be used by other calls until the future is complete.
+   *
+   * @param first first molecule
+   * @param firstRgroup R-group atom of the first molecule
+   * @param second second molecule
+   * @param secondRgroup R-group atom of the second molecule
+   * @return future of {@link ChemaxonManipulator#merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)}
+   */
+  public CompletableFuture<AbstractMolecule> merge(AbstractMolecule first, IAtomBase firstRgroup,
+      AbstractMolecule second, IAtomBase secondRgroup) {
+    return submit(() -> manipulator.merge(first, firstRgroup, second, secondRgroup));
+  }
+
+  /**
+   * shuts down the default pool, calls already submitted are still completed
+   */
+  @Override
+  public void close() {
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+  }
+
+  /**
+   * {@code Call} blocking call of the manipulator
+   */
+  private interface Call<T> {
+    T call() throws CTKException;
+  }
+
+  private <T> CompletableFuture<T> submit(Call<T> call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(call.call());
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      // e.g. RejectedExecutionException after close
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+}
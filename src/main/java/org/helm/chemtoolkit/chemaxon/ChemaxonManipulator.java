@@ -24,12 +24,30 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.ImageOutputStream;
 
 import org.helm.chemtoolkit.AbstractChemistryManipulator;
 import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.Attachment;
 import org.helm.chemtoolkit.AttachmentList;
 import org.helm.chemtoolkit.CTKException;
 import org.helm.chemtoolkit.CTKSmilesException;
@@ -37,6 +55,8 @@ import org.helm.chemtoolkit.IAtomBase;
 import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.IStereoElementBase;
 import org.helm.chemtoolkit.MoleculeInfo;
+import org.helm.chemtoolkit.chemaxon.MetricsSink.Stage;
+import org.helm.chemtoolkit.chemaxon.OperationStatistics.Operation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,12 +86,528 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
 
   public static final String CHEMAXON_EXTENDEND_SMILES_FORMAT = "cxsmiles:u-e";
 
+  /**
+   * parsed cap groups by SMILES, only handed out as clones
+   */
+  private final LruCache<CapGroup> capGroups = new LruCache<>(DEFAULT_CACHE_LIMIT);
+
+  /**
+   * MoleculeInfo of capped monomers by monomer id
+   */
+  private final LruCache<MoleculeInfo> monomerInfos = new LruCache<>(DEFAULT_CACHE_LIMIT);
+
+  /**
+   * MoleculeInfo of leaving groups by cap group SMILES
+   */
+  private final LruCache<MoleculeInfo> leavingGroupInfos = new LruCache<>(DEFAULT_CACHE_LIMIT);
+
+  private volatile MoleculeInfo hydrogenInfo;
+
+  /**
+   * default maximum number of entries of each cache
+   */
+  public static final int DEFAULT_CACHE_LIMIT = 10000;
+
+  private volatile int cacheLimit = DEFAULT_CACHE_LIMIT;
+
+  private final OperationStatistics statistics = new OperationStatistics();
+
+  private volatile SlowOperationJournal journal;
+
+  /**
+   * marks the worker threads running a call with a deadline, they stop at the next stage once cancelled
+   */
+  private static final ThreadLocal<Boolean> CANCELLABLE = new ThreadLocal<>();
+
+  private volatile long deadlineNanos;
+
+  /**
+   * number of threads of the default executor running the calls with a deadline
+   */
+  public static final int DEFAULT_DEADLINE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * calls with a deadline waiting per thread of the default executor, further calls are rejected
+   */
+  public static final int DEADLINE_QUEUE_PER_THREAD = 16;
+
+  private volatile ExecutorService deadlineExecutor;
+
+  /**
+   * the default executor created by this manipulator, shut down when it is replaced; guarded by this
+   */
+  private ExecutorService defaultDeadlineExecutor;
+
+  private volatile PersistentConversionCache persistentCache;
+
+  /**
+   * default import format of {@link StType#SMILES}, reading plain and extended SMILES
+   */
+  public static final String DEFAULT_SMILES_IMPORT_FORMAT = "cxsmiles";
+
+  /**
+   * default import format of {@link StType#MOLFILE}
+   */
+  public static final String DEFAULT_MOLFILE_IMPORT_FORMAT = MOL_FORMAT;
+
+  private final ConcurrentMap<StType, String> importFormats = new ConcurrentHashMap<>();
+
+  /**
+   * 2D layout of merged molecules exported as molfile
+   */
+  public enum LayoutMode {
+    /**
+     * every merged molecule is placed next to its attachment point, existing coordinates are kept on export. A merge
+     * closing a ring cleans the whole molecule.
+     */
+    INCREMENTAL,
+    /** the whole molecule is cleaned on export, the default */
+    FULL
+  }
+
+  private volatile LayoutMode layoutMode = LayoutMode.FULL;
+
+  private volatile MetricsSink metrics = MetricsSink.NONE;
+
+  /**
+   * marks the thread running {@link #warmUp()}
+   */
+  private static final ThreadLocal<Boolean> WARMING_UP = new ThreadLocal<>();
+
+  /**
+   * creates a cold manipulator, see {@link #createWarmedUp()}
+   */
+  public ChemaxonManipulator() {
+    importFormats.put(StType.SMILES, DEFAULT_SMILES_IMPORT_FORMAT);
+    importFormats.put(StType.MOLFILE, DEFAULT_MOLFILE_IMPORT_FORMAT);
+  }
+
+  /**
+   * creates a manipulator and warms it up with {@link #warmUp()} before it is handed out, so that no call of the
+   * caller pays for the warm-up. The duration of the warm-up is logged. Instances built by the ManipulatorFactory are
+   * warmed up by calling {@link #warmUp()} before they serve any calls.
+   * 
+   * @return the warmed up manipulator
+   * @throws CTKException if an operation of the warm-up failed
+   */
+  public static ChemaxonManipulator createWarmedUp() throws CTKException {
+    ChemaxonManipulator manipulator = new ChemaxonManipulator();
+    manipulator.warmUp();
+    return manipulator;
+  }
+
+  /**
+   * runs every operation on a built-in set of monomers until the latencies settle, see {@link WarmUp}. The calls of
+   * the warm-up run on the calling thread without deadline; they are neither counted in the statistics nor journaled,
+   * do not reach the metrics sink and do not use the persistent cache. Calls of other threads are not affected, they
+   * should only start once the warm-up is finished. The result is logged by {@link WarmUp}.
+   * 
+   * @return duration of the warm-up
+   * @throws CTKException if an operation failed
+   */
+  public WarmUp.Result warmUp() throws CTKException {
+    WARMING_UP.set(Boolean.TRUE);
+    try {
+      return WarmUp.run(this);
+    } finally {
+      WARMING_UP.remove();
+    }
+  }
+
+  /**
+   * @param type input type
+   * @return Marvin format used to read input of the type, null if the format is detected from the content
+   */
+  public String getImportFormat(StType type) {
+    return importFormats.get(type);
+  }
+
+  /**
+   * sets the Marvin format, optionally with import options, used to read input of the given type. With a format the
+   * content is not probed and input which does not match the format fails at once.
+   * 
+   * @param type input type
+   * @param format format, e.g. "cxsmiles" or "mol", null to detect the format from the content
+   */
+  public void setImportFormat(StType type, String format) {
+    if (format == null) {
+      importFormats.remove(type);
+    } else {
+      importFormats.put(type, format);
+    }
+  }
+
+  /**
+   * @return layout mode used for merge and molfile export
+   */
+  public LayoutMode getLayoutMode() {
+    return layoutMode;
+  }
+
+  /**
+   * @param layoutMode layout mode used for merge and molfile export
+   */
+  public void setLayoutMode(LayoutMode layoutMode) {
+    this.layoutMode = layoutMode;
+  }
+
+  /**
+   * @return sink receiving the durations of parse, clean, dearomatize, export, analyse, paint, encode and merge
+   */
+  public MetricsSink getMetricsSink() {
+    return metrics;
+  }
+
+  /**
+   * @param metrics sink receiving the stage durations, {@link MetricsSink#NONE} to switch them off
+   */
+  public void setMetricsSink(MetricsSink metrics) {
+    this.metrics = metrics == null ? MetricsSink.NONE : metrics;
+  }
+
+  /**
+   * @return calls, failures and latencies of the public operations
+   */
+  public OperationStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @return journal receiving slow calls, null if switched off
+   */
+  public SlowOperationJournal getSlowOperationJournal() {
+    return journal;
+  }
+
+  /**
+   * @param journal journal receiving the calls slower than its threshold, null to switch it off
+   */
+  public void setSlowOperationJournal(SlowOperationJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * runs a public operation, counts it in the statistics and hands it to the journal. Calls without a textual input can
+   * not be replayed and are not journaled.
+   */
+  private <T> T tracked(Operation operation, String argument, String input, Call<T> body) throws CTKException {
+    if (WARMING_UP.get() != null) {
+      return body.call();
+    }
+    long started = statistics.start(operation);
+    try {
+      return body.call();
+    } catch (CTKException | RuntimeException e) {
+      statistics.failed(operation);
+      throw e;
+    } finally {
+      long nanos = statistics.stop(operation, started);
+      SlowOperationJournal current = journal;
+      if (current != null && input != null) {
+        current.record(operation, argument, input, nanos);
+      }
+    }
+  }
+
+  /**
+   * runs a public operation as {@link #tracked(Operation, String, String, Call)} bounded by the deadline
+   */
+  private <T> T trackedWithDeadline(final Operation operation, String argument, String input, final Call<T> body)
+      throws CTKException {
+    return tracked(operation, argument, input, new Call<T>() {
+      @Override
+      public T call() throws CTKException {
+        return withDeadline(operation, body);
+      }
+    });
+  }
+
+  /**
+   * runs a public operation as {@link #tracked(Operation, String, String, Call)}, answered from the persistent cache or
+   * bounded by the deadline
+   */
+  private String trackedCached(final Operation operation, final String argument, StType type, final String input,
+      final Call<String> body) throws CTKException {
+    // the result depends on the format the input is read with
+    final String format = type == null ? null : importFormats.get(type);
+    return tracked(operation, argument, input, new Call<String>() {
+      @Override
+      public String call() throws CTKException {
+        return cached(operation, argument, format, input, body);
+      }
+    });
+  }
+
+  /**
+   * @return maximum number of entries of each cache
+   */
+  public int getCacheLimit() {
+    return cacheLimit;
+  }
+
+  /**
+   * sets the maximum number of entries of each cache. A full cache evicts its least recently used entry, caches
+   * holding more entries than the new limit are trimmed at once.
+   * 
+   * @param cacheLimit maximum number of entries, 0 switches caching off
+   */
+  public void setCacheLimit(int cacheLimit) {
+    if (cacheLimit < 0) {
+      throw new IllegalArgumentException("negative cache limit");
+    }
+    this.cacheLimit = cacheLimit;
+    for (LruCache<?> cache : caches()) {
+      cache.setLimit(cacheLimit);
+    }
+  }
+
+  /**
+   * @return number of cached cap groups
+   */
+  public int getCapGroupCacheSize() {
+    return capGroups.size();
+  }
+
+  /**
+   * @return number of cached monomer MoleculeInfos
+   */
+  public int getMonomerInfoCacheSize() {
+    return monomerInfos.size();
+  }
+
+  /**
+   * @return number of cached leaving group MoleculeInfos
+   */
+  public int getLeavingGroupInfoCacheSize() {
+    return leavingGroupInfos.size();
+  }
+
+  /**
+   * removes all cached cap groups and MoleculeInfos
+   */
+  public void clearCaches() {
+    for (LruCache<?> cache : caches()) {
+      cache.clear();
+    }
+    hydrogenInfo = null;
+  }
+
+  private List<LruCache<?>> caches() {
+    List<LruCache<?>> caches = new ArrayList<>(3);
+    caches.add(capGroups);
+    caches.add(monomerInfos);
+    caches.add(leavingGroupInfos);
+    return caches;
+  }
+
+  /**
+   * sets the time limit of convert, canonicalize, renderMol and merge. A call with a deadline runs on a worker thread;
+   * when it times out, the caller gets a {@link CTKException} at once, the timeout is counted and the worker is
+   * interrupted. Marvin itself can not be interrupted, so the worker gives up at the end of the current stage (parse,
+   * clean, export, ...). Until then the abandoned work keeps running and keeps its worker busy, a stage stuck in
+   * Marvin holds it for good. The molecules passed to a timed out merge must not be used any more.
+   * 
+   * @param deadline maximum duration of a call, 0 switches deadlines off
+   * @param unit unit of the deadline
+   */
+  public void setDeadline(long deadline, TimeUnit unit) {
+    if (deadline < 0) {
+      throw new IllegalArgumentException("negative deadline");
+    }
+    this.deadlineNanos = unit.toNanos(deadline);
+  }
+
+  /**
+   * @param unit unit of the result
+   * @return maximum duration of a call, 0 if deadlines are switched off
+   */
+  public long getDeadline(TimeUnit unit) {
+    return unit.convert(deadlineNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param executor executor running the calls with a deadline, null for the default: at most
+   *          {@link #DEFAULT_DEADLINE_THREADS} daemon threads and as many waiting calls per thread as
+   *          {@link #DEADLINE_QUEUE_PER_THREAD}. A call the executor rejects fails with a {@link CTKException}. When
+   *          another executor is set, the default one is shut down once its calls are finished; executors passed in
+   *          are never shut down by the manipulator.
+   */
+  public synchronized void setDeadlineExecutor(ExecutorService executor) {
+    if (executor == null) {
+      // back to the default, which is kept if it was created already
+      this.deadlineExecutor = defaultDeadlineExecutor;
+      return;
+    }
+    if (defaultDeadlineExecutor != null) {
+      defaultDeadlineExecutor.shutdown();
+      defaultDeadlineExecutor = null;
+    }
+    this.deadlineExecutor = executor;
+  }
+
+  private ExecutorService getDeadlineExecutor() {
+    ExecutorService executor = deadlineExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        if (deadlineExecutor == null) {
+          ThreadFactory threads = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "chemaxon-deadline-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          };
+          // bounded, abandoned calls which are still running must not pile up threads
+          ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_DEADLINE_THREADS, DEFAULT_DEADLINE_THREADS, 60,
+              TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_DEADLINE_THREADS * DEADLINE_QUEUE_PER_THREAD),
+              threads);
+          pool.allowCoreThreadTimeOut(true);
+          defaultDeadlineExecutor = pool;
+          deadlineExecutor = pool;
+        }
+        executor = deadlineExecutor;
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * {@code Call} body of a public operation
+   */
+  private interface Call<T> {
+    T call() throws CTKException;
+  }
+
+  /**
+   * runs the call on the calling thread, or on a worker thread bounded by the deadline if one is set
+   */
+  private <T> T withDeadline(Operation operation, final Call<T> body) throws CTKException {
+    long deadline = deadlineNanos;
+    if (deadline == 0 || WARMING_UP.get() != null) {
+      return body.call();
+    }
+    Future<T> future;
+    try {
+      future = getDeadlineExecutor().submit(new Callable<T>() {
+        @Override
+        public T call() throws CTKException {
+          CANCELLABLE.set(Boolean.TRUE);
+          try {
+            return body.call();
+          } finally {
+            CANCELLABLE.remove();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new CTKException(operation + " rejected, too many calls with a deadline are running", e);
+    }
+    try {
+      return future.get(deadline, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      statistics.timedOut(operation);
+      throw new CTKException(operation + " exceeded the deadline of " + TimeUnit.NANOSECONDS.toMillis(deadline)
+          + " ms");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new CTKException(operation + " interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CTKException) {
+        throw (CTKException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new CTKException(operation + " failed", cause);
+    }
+  }
+
+  /**
+   * @return on-disk cache of convert and canonicalize results, null if switched off
+   */
+  public PersistentConversionCache getPersistentCache() {
+    return persistentCache;
+  }
+
+  /**
+   * @param persistentCache on-disk cache answering convert and canonicalize, null to switch it off; the cache is not
+   *          closed by the manipulator
+   */
+  public void setPersistentCache(PersistentConversionCache persistentCache) {
+    this.persistentCache = persistentCache;
+  }
+
+  /**
+   * @return the persistent cache, null if switched off or during the warm-up
+   */
+  private PersistentConversionCache activeCache() {
+    return WARMING_UP.get() == null ? persistentCache : null;
+  }
+
+  /**
+   * answers a call from the persistent cache, or runs it and stores the result
+   */
+  private String cached(Operation operation, String argument, String format, String input, Call<String> body)
+      throws CTKException {
+    PersistentConversionCache cache = activeCache();
+    if (cache == null || input == null) {
+      return withDeadline(operation, body);
+    }
+    String result = cache.get(operation, argument, format, input);
+    if (result == null) {
+      result = withDeadline(operation, body);
+      if (result != null) {
+        store(cache, operation, argument, format, input, result);
+      }
+    }
+    return result;
+  }
+
+  private static void store(PersistentConversionCache cache, Operation operation, String argument, String format,
+      String input, String result) {
+    try {
+      cache.put(operation, argument, format, input, result);
+    } catch (IOException e) {
+      LOG.warn("unable to store " + operation + " result", e);
+    }
+  }
+
+  /**
+   * records the duration of a stage; a cancelled worker stops here
+   */
+  private void record(Stage stage, long start) {
+    if (WARMING_UP.get() == null) {
+      metrics.record(stage, System.nanoTime() - start);
+    }
+    if (CANCELLABLE.get() != null && Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("cancelled after " + stage);
+    }
+  }
+
   /**
    * 
    * {@inheritDoc}
    */
   @Override
-  public String convert(String data, StType type) throws CTKException {
+  public String convert(final String data, final StType type) throws CTKException {
+    return trackedCached(Operation.CONVERT, String.valueOf(type), type, data, new Call<String>() {
+      @Override
+      public String call() throws CTKException {
+        return convertData(data, type);
+      }
+    });
+  }
+
+  private String convertData(String data, StType type) throws CTKException {
     String result = null;
 
     switch (type) {
@@ -103,23 +639,20 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    * @throws MolExportException if the molecule can not be exported into molfile format
    */
   private String molecule2MolFile(Molecule molecule) throws MolExportException {
+    long start = System.nanoTime();
     molecule.clean(2, null);
+    record(Stage.CLEAN, start);
+    start = System.nanoTime();
     molecule.dearomatize();
-    return molecule.exportToFormat(MOL_FORMAT);
+    record(Stage.DEAROMATIZE, start);
+    return export(molecule, MOL_FORMAT);
   }
 
-  /**
-   * 
-   * @param molecule given Molecule
-   * @return molecule in smiles format
-   * @throws MolExportException if the molecule can not be exported into smiles format
-   */
-  private String molecule2SMILES(Molecule molecule) throws MolExportException {
-
-    molecule.dearomatize();
-
-    return molecule.exportToFormat(SMILES_FORMAT);
-
+  private String export(Molecule molecule, String format) throws MolExportException {
+    long start = System.nanoTime();
+    String result = molecule.exportToFormat(format);
+    record(Stage.EXPORT, start);
+    return result;
   }
 
   /**
@@ -127,10 +660,27 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    * {@inheritDoc}
    */
   @Override
-  public boolean validateSMILES(String smiles) {
+  public boolean validateSMILES(final String smiles) {
+    try {
+      return tracked(Operation.VALIDATE_SMILES, "", smiles, new Call<Boolean>() {
+        @Override
+        public Boolean call() {
+          return validSmiles(smiles);
+        }
+      });
+    } catch (CTKException e) {
+      // not thrown by validSmiles
+      return false;
+    }
+  }
+
+  private boolean validSmiles(String smiles) {
+    if (!SmilesLexer.isPlausible(smiles)) {
+      return false;
+    }
     Molecule mol;
     try {
-      mol = getMolecule(smiles);
+      mol = getMolecule(smiles, StType.SMILES);
       for (int i = 0; i < mol.getAtomCount(); i++) {
         MolAtom a = mol.getAtom(i);
         a.valenceCheck();
@@ -149,15 +699,24 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    * {@inheritDoc}
    */
   @Override
-  public MoleculeInfo getMoleculeInfo(AbstractMolecule aMolecule) throws CTKException {
+  public MoleculeInfo getMoleculeInfo(final AbstractMolecule aMolecule) throws CTKException {
+    return tracked(Operation.GET_MOLECULE_INFO, null, null, new Call<MoleculeInfo>() {
+      @Override
+      public MoleculeInfo call() throws CTKException {
+        return moleculeInfo(((ChemMolecule) aMolecule).peekMolecule());
+      }
+    });
+  }
 
-    Molecule molecule = ((ChemMolecule) aMolecule).getMolecule();
+  private MoleculeInfo moleculeInfo(Molecule molecule) throws CTKException {
     MoleculeInfo moleculeInfo;
     try {
       // molecule = getMolecule(smiles);
+      long start = System.nanoTime();
       ElementalAnalyserPlugin plugin = new ElementalAnalyserPlugin();
       plugin.setMolecule(molecule);
       plugin.run();
+      record(Stage.ANALYSE, start);
       moleculeInfo = new MoleculeInfo();
       moleculeInfo.setMolecularFormula(plugin.getFormula());
       moleculeInfo.setMolecularWeight(plugin.getMass());
@@ -172,11 +731,9 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
 
   private String convertSMILES2MolFile(String smiles) throws CTKException {
     String result = null;
+    checkSyntax(smiles);
     try {
-      Molecule molecule = getMolecule(smiles);
-      molecule.clean(2, null);
-      molecule.dearomatize();
-      result = molecule.exportToFormat(MOL_FORMAT);
+      result = molecule2MolFile(getMolecule(smiles, StType.SMILES));
 
     } catch (IOException e) {
       throw new CTKSmilesException("invalid SMILES!", e);
@@ -184,11 +741,21 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
     return result;
   }
 
+  /**
+   * rejects input which is syntactically no SMILES before it reaches Marvin
+   */
+  private static void checkSyntax(String smiles) throws CTKSmilesException {
+    int error = SmilesLexer.check(smiles);
+    if (error >= 0) {
+      throw new CTKSmilesException("invalid SMILES! syntax error at position " + error);
+    }
+  }
+
   private String convertMolFile2SMILES(String molfile) throws CTKException {
     String result = null;
     try {
-      Molecule molecule = getMolecule(molfile);
-      result = molecule.exportToFormat(SMILES_FORMAT);
+      Molecule molecule = getMolecule(molfile, StType.MOLFILE);
+      result = export(molecule, SMILES_FORMAT);
 
     } catch (IOException e) {
       throw new CTKSmilesException("invalid molfile!", e);
@@ -201,18 +768,149 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    * {@inheritDoc}
    */
   @Override
-  public String canonicalize(String smiles) throws CTKException, CTKSmilesException {
+  public String canonicalize(final String smiles) throws CTKException, CTKSmilesException {
+    return trackedCached(Operation.CANONICALIZE, "", StType.SMILES, smiles, new Call<String>() {
+      @Override
+      public String call() throws CTKException {
+        return canonicalSmiles(smiles);
+      }
+    });
+  }
+
+  /**
+   * canonical SMILES of the molecule as {@code canonicalize(convertMolecule(container, SMILES))} for batch jobs
+   * producing many distinct molecules. The call is counted as {@link Operation#CANONICALIZE}, but it is neither cached
+   * nor journaled nor bounded by the deadline.
+   */
+  String canonicalSmiles(final AbstractMolecule container) throws CTKException {
+    return tracked(Operation.CANONICALIZE, "", null, new Call<String>() {
+      @Override
+      public String call() throws CTKException {
+        return canonicalSmiles(convertMolecule(container, StType.SMILES));
+      }
+    });
+  }
+
+  private String canonicalSmiles(String smiles) throws CTKException {
     String result = null;
+    checkSyntax(smiles);
     try {
-      Molecule molecule = getMolecule(smiles);
+      Molecule molecule = getMolecule(smiles, StType.SMILES);
+      long start = System.nanoTime();
       molecule.implicitizeHydrogens(MolAtom.ALL_H);
       result = molecule.toFormat(UNIQUE_SMILES_FORMAT);
+      record(Stage.EXPORT, start);
     } catch (IOException e) {
       throw new CTKSmilesException("invalid SMILES!", e);
     }
     return result;
   }
 
+  /**
+   * produces all outputs selected by the request from a single parse of its input. The structure is parsed and cleaned
+   * once, and dearomatized at most once for the molfile and the image.
+   * <p>
+   * The outputs match the single calls: {@link ConversionRequest.Output#SMILES} as {@code convert(molfile, MOLFILE)},
+   * {@link ConversionRequest.Output#CANONICAL_SMILES} as {@link #canonicalize(String)},
+   * {@link ConversionRequest.Output#MOLFILE} as {@code convert(smiles, SMILES)} without cleaning a second time and
+   * {@link ConversionRequest.Output#IMAGE} as {@link #renderMol(String, OutputType, int, int, int)} of that molfile.
+   * 
+   * <p>
+   * The request is bounded by the deadline and counted as {@link Operation#CONVERT_REQUEST}, it is not journaled.
+   * SMILES and canonical SMILES share the entries of the persistent cache with the single calls; when these are all
+   * the request asks for and they are cached, the input is not parsed.
+   * 
+   * @param request input and selected outputs
+   * @return selected outputs
+   * @throws CTKException if the input can not be read or an output can not be produced
+   */
+  public ConversionResult convert(final ConversionRequest request) throws CTKException {
+    // a request can not be replayed, so it is not passed to the journal
+    return trackedWithDeadline(Operation.CONVERT_REQUEST, null, null, new Call<ConversionResult>() {
+      @Override
+      public ConversionResult call() throws CTKException {
+        return convertRequest(request);
+      }
+    });
+  }
+
+  private ConversionResult convertRequest(ConversionRequest request) throws CTKException {
+    ConversionResult result = new ConversionResult();
+    if (request.getType() != StType.SMILES && request.getType() != StType.MOLFILE) {
+      throw new CTKException("unsupported input type " + request.getType());
+    }
+    if (request.getType() == StType.SMILES) {
+      checkSyntax(request.getData());
+    }
+    PersistentConversionCache cache = request.getData() == null ? null : activeCache();
+    String format = importFormats.get(request.getType());
+    boolean smiles = request.isRequested(ConversionRequest.Output.SMILES);
+    boolean canonicalSmiles = request.isRequested(ConversionRequest.Output.CANONICAL_SMILES);
+    if (cache != null && smiles && request.getType() == StType.MOLFILE) {
+      result.setSmiles(cache.get(Operation.CONVERT, String.valueOf(StType.MOLFILE), format, request.getData()));
+      smiles = result.getSmiles() == null;
+    }
+    if (cache != null && canonicalSmiles && request.getType() == StType.SMILES) {
+      result.setCanonicalSmiles(cache.get(Operation.CANONICALIZE, "", format, request.getData()));
+      canonicalSmiles = result.getCanonicalSmiles() == null;
+    }
+    if (!smiles && !canonicalSmiles && !request.isRequested(ConversionRequest.Output.MOLECULE_INFO)
+        && !request.isRequested(ConversionRequest.Output.MOLFILE)
+        && !request.isRequested(ConversionRequest.Output.IMAGE)) {
+      return result;
+    }
+    Molecule molecule;
+    try {
+      molecule = getMolecule(request.getData(), request.getType());
+    } catch (IOException e) {
+      throw new CTKSmilesException(request.getType() == StType.SMILES ? "invalid SMILES!" : "invalid molfile!", e);
+    }
+    if (molecule == null) {
+      throw new CTKException("no input data");
+    }
+
+    try {
+      if (smiles) {
+        result.setSmiles(export(molecule, SMILES_FORMAT));
+        if (cache != null && request.getType() == StType.MOLFILE) {
+          store(cache, Operation.CONVERT, String.valueOf(StType.MOLFILE), format, request.getData(),
+              result.getSmiles());
+        }
+      }
+      if (request.isRequested(ConversionRequest.Output.MOLECULE_INFO)) {
+        result.setMoleculeInfo(moleculeInfo(molecule));
+      }
+      if (request.isRequested(ConversionRequest.Output.MOLFILE)
+          || request.isRequested(ConversionRequest.Output.IMAGE)) {
+        long start = System.nanoTime();
+        molecule.dearomatize();
+        record(Stage.DEAROMATIZE, start);
+      }
+      if (request.isRequested(ConversionRequest.Output.MOLFILE)) {
+        result.setMolFile(export(molecule, MOL_FORMAT));
+      }
+      // unique SMILES are aromatized on export, removing the hydrogens does not affect the outputs above
+      if (canonicalSmiles) {
+        long start = System.nanoTime();
+        molecule.implicitizeHydrogens(MolAtom.ALL_H);
+        result.setCanonicalSmiles(molecule.toFormat(UNIQUE_SMILES_FORMAT));
+        record(Stage.EXPORT, start);
+        if (cache != null && request.getType() == StType.SMILES) {
+          store(cache, Operation.CANONICALIZE, "", format, request.getData(), result.getCanonicalSmiles());
+        }
+      }
+      if (request.isRequested(ConversionRequest.Output.IMAGE)) {
+        result.setImage(renderMolecule(molecule, request.getImageType(), request.getImageWidth(),
+            request.getImageHeight(), request.getImageRgb()));
+      }
+    } catch (MolExportException e) {
+      throw new CTKException("unable to export molecule!", e);
+    } catch (IOException e) {
+      throw new CTKException("unable to invoke the outputstream", e);
+    }
+    return result;
+  }
+
   /**
    * convert SMILES and MOLFiles to Molecule
    * 
@@ -222,13 +920,30 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    */
 
   private Molecule getMolecule(String data) throws IOException {
+    return getMolecule(data, null);
+  }
+
+  /**
+   * convert data of a known type to Molecule, the format is not detected from the content
+   * 
+   * @param data input data string
+   * @param type type of the input, null to detect the format
+   * @return Molecule object
+   * @throws java.io.IOException if the input data can not be read in the format of the type
+   */
+  private Molecule getMolecule(String data, StType type) throws IOException {
     Molecule molecule = null;
     if (data != null) {
       // molecule = MolImporter.importMol(data);
       InputStream is = new ByteArrayInputStream(data.getBytes());
-      MolImporter importer = new MolImporter(is);
+      String format = type == null ? null : importFormats.get(type);
+      long start = System.nanoTime();
+      MolImporter importer = format == null ? new MolImporter(is) : new MolImporter(is, format);
       molecule = importer.read();
+      record(Stage.PARSE, start);
+      start = System.nanoTime();
       molecule.clean(2, null);
+      record(Stage.CLEAN, start);
 // for (MolBond bond : molecule.getBondArray()) {
 // bond.calcStereo2();
 // }
@@ -243,7 +958,35 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
    * {@inheritDoc}
    */
   @Override
-  public byte[] renderMol(String molFile, OutputType outputType, int width, int height, int rgb) throws CTKException {
+  public byte[] renderMol(final String molFile, final OutputType outputType, final int width, final int height,
+      final int rgb) throws CTKException {
+    String argument = outputType + "," + width + "," + height + "," + rgb;
+    return trackedWithDeadline(Operation.RENDER_MOL, argument, molFile, new Call<byte[]>() {
+      @Override
+      public byte[] call() throws CTKException {
+        return renderMolFile(molFile, outputType, width, height, rgb);
+      }
+    });
+  }
+
+  private byte[] renderMolFile(String molFile, OutputType outputType, int width, int height, int rgb)
+      throws CTKException {
+    try {
+      return renderMolecule(getMolecule(molFile), outputType, width, height, rgb);
+    } catch (IOException e) {
+      throw new CTKException("unable to invoke the outputstream");
+    }
+  }
+
+  /**
+   * paints the molecule into an image, explicit hydrogens of the molecule are removed
+   * 
+   * @param mol molecule with 2D coordinates
+   * @return image bytes
+   * @throws IOException if the image can not be written
+   */
+  private byte[] renderMolecule(Molecule mol, OutputType outputType, int width, int height, int rgb)
+      throws IOException {
     byte[] result;
 
     try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -258,28 +1001,27 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
 
       g.draw(drawArea);
 
-      Molecule mol = getMolecule(molFile);
       mol.hydrogenize(false);
 
       MolPrinter printer = new MolPrinter(mol);
       // printer.setImplicitH(DispOptConsts.IMPLICITH_OFF_S);
       printer.setImplicitH(DispOptConsts.IMPLICITH_ALL_S);
 
-      System.out.println(printer.getImplicitH());
       printer.setScale(printer.maxScale(drawArea));
       printer.setBackgroundColor(new Color(rgb));
       g.setBackground(new Color(rgb));
+      long start = System.nanoTime();
       printer.paint(g, drawArea);
+      record(Stage.PAINT, start);
 
+      start = System.nanoTime();
       ImageIO.write(image, outputType.toString(), ios);
+      record(Stage.ENCODE, start);
 
       result = baos.toByteArray();
-    } catch (IOException e) {
-      throw new CTKException("unable to invoke the outputstream");
     }
 
     return result;
-
   }
 
   /**
@@ -301,10 +1043,138 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
   @Override
   public AbstractMolecule getMolecule(String smiles, AttachmentList attachments) throws IOException {
 
-    ChemMolecule molecule = new ChemMolecule(getMolecule(smiles), attachments);
+    ChemMolecule molecule = new ChemMolecule(getMolecule(smiles, StType.SMILES), attachments);
     return molecule;
   }
 
+  /**
+   * returns a copy of the given cap group. The SMILES is parsed only once, later calls clone the parsed molecule.
+   * 
+   * @param smiles cap group SMILES, e.g. {@link Attachment#getSmiles()}
+   * @return cap group molecule
+   * @throws IOException if the SMILES can not be read
+   */
+  public AbstractMolecule getCapGroup(String smiles) throws IOException {
+    return getCapGroupEntry(smiles).molecule.cloneMolecule();
+  }
+
+  /**
+   * caps the given R-group atom with the cap group of the attachment. Cap groups consisting of a single plain atom next
+   * to the R-group (e.g. H or OH) replace the R-group atom directly, all others are merged from a cached copy.
+   * 
+   * @param molecule molecule to cap
+   * @param rGroup R-group atom of the molecule
+   * @param attachment attachment holding the cap group
+   * @return the capped molecule
+   * @throws CTKException if the cap group can not be read or merged
+   */
+  public AbstractMolecule capRgroup(AbstractMolecule molecule, IAtomBase rGroup, Attachment attachment)
+      throws CTKException {
+    CapGroup capGroup;
+    try {
+      capGroup = getCapGroupEntry(attachment.getSmiles());
+    } catch (IOException e) {
+      throw new CTKSmilesException("invalid cap group SMILES!", e);
+    }
+    if (capGroup.atno > 0 && molecule instanceof ChemMolecule) {
+      ((ChemMolecule) molecule).replaceRgroup(rGroup, capGroup.atno);
+      return molecule;
+    }
+    AbstractMolecule cap = capGroup.molecule.cloneMolecule();
+    int groupId = AbstractMolecule.getIdFromLabel(attachment.getLabel());
+    return merge(molecule, rGroup, cap, cap.getRGroupAtom(groupId, true));
+  }
+
+  /**
+   * returns the MoleculeInfo of the monomer with all R-groups capped by their attachments. The result is cached by the
+   * monomer id, the monomer itself is not modified.
+   * 
+   * @param id monomer id, the key of the cache
+   * @param monomer monomer with attachments
+   * @return MoleculeInfo of the capped monomer
+   * @throws CTKException if the monomer can not be capped or analysed
+   */
+  public MoleculeInfo getMonomerInfo(String id, AbstractMolecule monomer) throws CTKException {
+    MoleculeInfo info = monomerInfos.get(id);
+    if (info == null) {
+      AbstractMolecule capped = monomer.cloneMolecule();
+      List<Attachment> attachments = new ArrayList<>(capped.getAttachments());
+      List<IAtomBase> rGroups = new ArrayList<>(attachments.size());
+      for (Attachment attachment : attachments) {
+        rGroups.add(capped.getRGroupAtom(AbstractMolecule.getIdFromLabel(attachment.getLabel()), true));
+      }
+      for (int i = 0; i < attachments.size(); i++) {
+        capped = capRgroup(capped, rGroups.get(i), attachments.get(i));
+      }
+      info = getMoleculeInfo(capped);
+      info = monomerInfos.putIfAbsent(id, info);
+    }
+    return info;
+  }
+
+  /**
+   * returns the MoleculeInfo of the group leaving when the R-group of the attachment is used in a connection, i.e. the
+   * cap group without its R-group atom
+   * 
+   * @param attachment attachment holding the cap group
+   * @return MoleculeInfo of the leaving group
+   * @throws CTKException if the cap group can not be read or analysed
+   */
+  public MoleculeInfo getLeavingGroupInfo(Attachment attachment) throws CTKException {
+    String smiles = attachment.getSmiles();
+    MoleculeInfo info = leavingGroupInfos.get(smiles);
+    if (info == null) {
+      // the R-group atom is replaced by H, which is subtracted again
+      info = new AdditiveMoleculeInfo(this).add(getMoleculeInfo(hydrogenated(smiles)))
+          .subtract(getHydrogenInfo()).getMoleculeInfo();
+      info = leavingGroupInfos.putIfAbsent(smiles, info);
+    }
+    return info;
+  }
+
+  /**
+   * @return MoleculeInfo of a single hydrogen atom, taken as half of H2
+   */
+  private MoleculeInfo getHydrogenInfo() throws CTKException {
+    MoleculeInfo info = hydrogenInfo;
+    if (info == null) {
+      MoleculeInfo h2 = getMoleculeInfo(hydrogenated("[*][H] |$_R1;$|"));
+      info = new MoleculeInfo();
+      info.setMolecularFormula("H");
+      info.setMolecularWeight(h2.getMolecularWeight() / 2);
+      info.setExactMass(h2.getExactMass() / 2);
+      hydrogenInfo = info;
+    }
+    return info;
+  }
+
+  /**
+   * @return copy of the cap group with its R-group atom replaced by H
+   */
+  private AbstractMolecule hydrogenated(String smiles) throws CTKException {
+    ChemMolecule cap;
+    try {
+      cap = (ChemMolecule) getCapGroup(smiles);
+    } catch (IOException e) {
+      throw new CTKSmilesException("invalid cap group SMILES!", e);
+    }
+    for (IAtomBase atom : new ArrayList<>(cap.getIAtomArray())) {
+      if (atom.getRgroup() != 0) {
+        cap.replaceRgroup(atom, 1);
+      }
+    }
+    return cap;
+  }
+
+  private CapGroup getCapGroupEntry(String smiles) throws IOException {
+    CapGroup capGroup = capGroups.get(smiles);
+    if (capGroup == null) {
+      capGroup = new CapGroup(new ChemMolecule(getMolecule(smiles, StType.SMILES), null));
+      capGroup = capGroups.putIfAbsent(smiles, capGroup);
+    }
+    return capGroup;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -350,18 +1220,18 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
   @Override
   public String convertMolecule(AbstractMolecule container, StType type) throws CTKException {
     String result = null;
-    Molecule molecule = (Molecule) container.getMolecule();
     switch (type) {
     case SMILES:
       try {
-        result = molecule2SMILES(molecule);
+        dearomatize(container);
+        result = export(readMolecule(container), SMILES_FORMAT);
       } catch (MolExportException e) {
         throw new CTKException("unable to export molecule to SMILES!", e);
       }
       break;
     case MOLFILE:
       try {
-        result = molecule2MolFile(molecule);
+        result = export(prepareMolFile(container), MOL_FORMAT);
       } catch (MolExportException e) {
         throw new CTKException("unable to export molecule to molfile!", e);
       }
@@ -374,6 +1244,138 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
     return result;
   }
 
+  /**
+   * cleans the molecule of the container unless it keeps the coordinates of the incremental layout, then dearomatizes
+   * it. A shared molecule which needs no cleaning is not copied.
+   * 
+   * @return the molecule ready for molfile export, for reading only
+   */
+  private Molecule prepareMolFile(AbstractMolecule container) throws CTKException {
+    if (layoutMode == LayoutMode.FULL || readMolecule(container).getDim() != 2) {
+      Molecule molecule = container instanceof ChemMolecule ? ((ChemMolecule) container).ownedMolecule()
+          : (Molecule) container.getMolecule();
+      long start = System.nanoTime();
+      molecule.clean(2, null);
+      record(Stage.CLEAN, start);
+    }
+    dearomatize(container);
+    return readMolecule(container);
+  }
+
+  /**
+   * @return the molecule of the container for reading only, a {@link ChemMolecule} is neither copied nor loses its
+   *         Kekule state
+   */
+  private static Molecule readMolecule(AbstractMolecule container) {
+    if (container instanceof ChemMolecule) {
+      return ((ChemMolecule) container).peekMolecule();
+    }
+    return (Molecule) container.getMolecule();
+  }
+
+  /**
+   * @return the Marvin atom for reading only
+   */
+  private static MolAtom readAtom(IAtomBase atom) {
+    if (atom instanceof ChemAtom) {
+      return ((ChemAtom) atom).peekMolAtom();
+    }
+    return (MolAtom) atom.getMolAtom();
+  }
+
+  /**
+   * dearomatizes the container, which keeps track of its aromaticity: repeated exports of an unchanged molecule
+   * dearomatize only once
+   */
+  private void dearomatize(AbstractMolecule container) throws CTKException {
+    long start = System.nanoTime();
+    container.dearomatize();
+    record(Stage.DEAROMATIZE, start);
+  }
+
+  /**
+   * writes the molecule as molfile straight to the writer, prepared in the same way as by
+   * {@link #convertMolecule(AbstractMolecule, StType)} but without building the whole file as one string. Large
+   * molecules are written as V3000 by {@link MolFileWriter.Version#AUTO}. Molecules with properties the
+   * {@link MolFileWriter} does not know are exported by Marvin.
+   * <p>
+   * The call is counted as {@link Operation#WRITE_MOLFILE}. It is not journaled, and it is not bounded by the deadline,
+   * as an abandoned call would go on writing to the writer.
+   *
+   * @param container molecule to write
+   * @param writer target, not closed
+   * @param version molfile version
+   * @throws CTKException if the molecule can not be written
+   */
+  public void writeMolFile(final AbstractMolecule container, final Writer writer,
+      final MolFileWriter.Version version) throws CTKException {
+    tracked(Operation.WRITE_MOLFILE, String.valueOf(version), null, new Call<Void>() {
+      @Override
+      public Void call() throws CTKException {
+        Molecule molecule = prepareMolFile(container);
+        long start = System.nanoTime();
+        try {
+          MolFileWriter.write(molecule, writer, version);
+        } catch (IOException e) {
+          throw new CTKException("unable to write molfile!", e);
+        }
+        record(Stage.EXPORT, start);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * In {@link LayoutMode#INCREMENTAL} the second molecule is moved next to the attachment point of the first one
+   * before merging, a merge within one molecule closes a ring and cleans the result.
+   */
+  @Override
+  public AbstractMolecule merge(final AbstractMolecule firstContainer, final IAtomBase firstRgroup,
+      final AbstractMolecule secondContainer, final IAtomBase secondRgroup) throws CTKException {
+    return trackedWithDeadline(Operation.MERGE, null, null, new Call<AbstractMolecule>() {
+      @Override
+      public AbstractMolecule call() throws CTKException {
+        return mergeMolecules(firstContainer, firstRgroup, secondContainer, secondRgroup);
+      }
+    });
+  }
+
+  /**
+   * merges as {@link #merge(AbstractMolecule, IAtomBase, AbstractMolecule, IAtomBase)} on the calling thread for batch
+   * jobs running on their own pool. The merge is counted in the statistics but not bounded by the deadline, which
+   * would block the worker thread on the deadline executor.
+   */
+  AbstractMolecule mergeInline(final AbstractMolecule firstContainer, final IAtomBase firstRgroup,
+      final AbstractMolecule secondContainer, final IAtomBase secondRgroup) throws CTKException {
+    return tracked(Operation.MERGE, null, null, new Call<AbstractMolecule>() {
+      @Override
+      public AbstractMolecule call() throws CTKException {
+        return mergeMolecules(firstContainer, firstRgroup, secondContainer, secondRgroup);
+      }
+    });
+  }
+
+  private AbstractMolecule mergeMolecules(AbstractMolecule firstContainer, IAtomBase firstRgroup,
+      AbstractMolecule secondContainer, IAtomBase secondRgroup) throws CTKException {
+    long start = System.nanoTime();
+    if (layoutMode == LayoutMode.INCREMENTAL && firstContainer != secondContainer) {
+      // the first molecule is only read, the second one is moved
+      IncrementalLayout.place(readMolecule(firstContainer), readAtom(firstRgroup),
+          (Molecule) secondContainer.getMolecule(), (MolAtom) secondRgroup.getMolAtom());
+    }
+    AbstractMolecule merged = super.merge(firstContainer, firstRgroup, secondContainer, secondRgroup);
+    record(Stage.MERGE, start);
+    if (layoutMode == LayoutMode.INCREMENTAL && firstContainer == secondContainer) {
+      // the ring bond would keep the length of the distance between both attachment points
+      start = System.nanoTime();
+      merged.generateCoordinates(2);
+      record(Stage.CLEAN, start);
+    }
+    return merged;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -390,4 +1392,37 @@ public class ChemaxonManipulator extends AbstractChemistryManipulator {
     return isStereo;
   }
 
+  /**
+   * {@code CapGroup} parsed cap group together with the atom that can replace the R-group directly
+   */
+  private static final class CapGroup {
+
+    private final ChemMolecule molecule;
+
+    /**
+     * atomic number of the single cap atom, 0 if the cap group has to be merged. Only uncharged atoms without isotope,
+     * radical or explicit hydrogens are taken, as the replaced R-group atom does not carry that state.
+     */
+    private final int atno;
+
+    private CapGroup(ChemMolecule molecule) {
+      this.molecule = molecule;
+      this.atno = singleAtom(molecule.peekMolecule());
+    }
+
+    private static int singleAtom(Molecule molecule) {
+      if (molecule.getAtomCount() != 2 || molecule.getBondCount() != 1) {
+        return 0;
+      }
+      MolBond bond = molecule.getBond(0);
+      MolAtom rAtom = bond.getAtom1().getRgroup() != 0 ? bond.getAtom1() : bond.getAtom2();
+      MolAtom capAtom = bond.getOtherAtom(rAtom);
+      if (rAtom.getRgroup() == 0 || capAtom.getRgroup() != 0 || capAtom.getCharge() != 0 || capAtom.getMassno() != 0
+          || capAtom.getRadical() != 0 || capAtom.getExplicitHcount() != 0 || bond.getType() != 1) {
+        return 0;
+      }
+      return capAtom.getAtno();
+    }
+  }
+
 }
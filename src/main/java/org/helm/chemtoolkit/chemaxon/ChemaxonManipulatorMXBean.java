@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.Map;
+
+/**
+ * {@code ChemaxonManipulatorMXBean} management interface of a {@link ChemaxonManipulator}, registered by
+ * {@link ChemaxonManipulatorMonitor}. Operation values are keyed by the names of
+ * {@link OperationStatistics.Operation}.
+ *
+ * @author chistyakov
+ */
+public interface ChemaxonManipulatorMXBean {
+
+  /**
+   * @return number of finished calls per operation
+   */
+  Map<String, Long> getOperationCounts();
+
+  /**
+   * @return number of failed calls per operation
+   */
+  Map<String, Long> getOperationErrors();
+
+  /**
+   * @return number of calls per operation which exceeded their deadline
+   */
+  Map<String, Long> getOperationTimeouts();
+
+  /**
+   * @return number of running calls per operation
+   */
+  Map<String, Long> getOperationsInFlight();
+
+  /**
+   * @return mean duration per operation in microseconds
+   */
+  Map<String, Double> getMeanMicros();
+
+  /**
+   * @return longest duration per operation in microseconds
+   */
+  Map<String, Long> getMaxMicros();
+
+  /**
+   * @return median duration per operation in microseconds, rounded up to a power of two nanoseconds
+   */
+  Map<String, Long> getP50Micros();
+
+  /**
+   * @return 99th percentile of the duration per operation in microseconds, rounded up to a power of two nanoseconds
+   */
+  Map<String, Long> getP99Micros();
+
+  /**
+   * @return number of cached cap groups
+   */
+  int getCapGroupCacheSize();
+
+  /**
+   * @return number of cached monomer MoleculeInfos
+   */
+  int getMonomerInfoCacheSize();
+
+  /**
+   * @return number of cached leaving group MoleculeInfos
+   */
+  int getLeavingGroupInfoCacheSize();
+
+  /**
+   * @return maximum number of entries of each cache
+   */
+  int getCacheLimit();
+
+  /**
+   * @param cacheLimit maximum number of entries of each cache
+   */
+  void setCacheLimit(int cacheLimit);
+
+  /**
+   * @return deadline of a call in milliseconds, 0 if switched off
+   */
+  long getDeadlineMillis();
+
+  /**
+   * @param deadline deadline of a call in milliseconds, 0 switches deadlines off
+   */
+  void setDeadlineMillis(long deadline);
+
+  /**
+   * @return current layout mode
+   */
+  String getLayoutMode();
+
+  /**
+   * @param layoutMode name of a {@link ChemaxonManipulator.LayoutMode}
+   */
+  void setLayoutMode(String layoutMode);
+
+  /**
+   * removes all cached values
+   */
+  void clearCaches();
+
+  /**
+   * clears the operation statistics
+   */
+  void resetStatistics();
+
+}
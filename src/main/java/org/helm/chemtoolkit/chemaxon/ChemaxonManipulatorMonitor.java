@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.chemaxon.OperationStatistics.Operation;
+
+/**
+ * {@code ChemaxonManipulatorMonitor} exposes the operation statistics and caches of a {@link ChemaxonManipulator} as
+ * an MXBean on the platform MBean server, e.g. for jconsole. The object name is
+ * {@code org.helm.chemtoolkit.chemaxon:type=ChemaxonManipulator,name=<name>}.
+ *
+ * @author chistyakov
+ */
+public class ChemaxonManipulatorMonitor implements ChemaxonManipulatorMXBean {
+
+  private static final String DOMAIN = "org.helm.chemtoolkit.chemaxon";
+
+  private final ChemaxonManipulator manipulator;
+
+  /**
+   * @param manipulator monitored manipulator
+   */
+  public ChemaxonManipulatorMonitor(ChemaxonManipulator manipulator) {
+    this.manipulator = manipulator;
+  }
+
+  /**
+   * registers a monitor for the manipulator on the platform MBean server
+   *
+   * @param manipulator monitored manipulator
+   * @param name value of the name key of the object name
+   * @return object name of the registered MXBean
+   * @throws CTKException if the name is invalid or already registered
+   */
+  public static ObjectName register(ChemaxonManipulator manipulator, String name) throws CTKException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName objectName = objectName(name);
+      server.registerMBean(new ChemaxonManipulatorMonitor(manipulator), objectName);
+      return objectName;
+    } catch (JMException e) {
+      throw new CTKException("unable to register MXBean " + name, e);
+    }
+  }
+
+  /**
+   * removes a monitor registered by {@link #register(ChemaxonManipulator, String)}, unknown names are ignored
+   *
+   * @param name value of the name key of the object name
+   * @throws CTKException if the name is invalid
+   */
+  public static void unregister(String name) throws CTKException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName objectName = objectName(name);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      throw new CTKException("unable to unregister MXBean " + name, e);
+    }
+  }
+
+  private static ObjectName objectName(String name) throws JMException {
+    return new ObjectName(DOMAIN + ":type=ChemaxonManipulator,name=" + ObjectName.quote(name));
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(statistics::getCount);
+  }
+
+  @Override
+  public Map<String, Long> getOperationErrors() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(statistics::getErrors);
+  }
+
+  @Override
+  public Map<String, Long> getOperationTimeouts() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(statistics::getTimeouts);
+  }
+
+  @Override
+  public Map<String, Long> getOperationsInFlight() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(statistics::getInFlight);
+  }
+
+  @Override
+  public Map<String, Double> getMeanMicros() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(operation -> {
+      long count = statistics.getCount(operation);
+      return count == 0 ? 0 : statistics.getTotalNanos(operation) / 1000.0 / count;
+    });
+  }
+
+  @Override
+  public Map<String, Long> getMaxMicros() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(operation -> statistics.getMaxNanos(operation) / 1000);
+  }
+
+  @Override
+  public Map<String, Long> getP50Micros() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(operation -> statistics.getPercentileNanos(operation, 50) / 1000);
+  }
+
+  @Override
+  public Map<String, Long> getP99Micros() {
+    final OperationStatistics statistics = manipulator.getStatistics();
+    return perOperation(operation -> statistics.getPercentileNanos(operation, 99) / 1000);
+  }
+
+  /**
+   * @return the value of every operation keyed by its name, in declaration order
+   */
+  private static <T> Map<String, T> perOperation(Function<Operation, T> value) {
+    Map<String, T> result = new LinkedHashMap<>();
+    for (Operation operation : Operation.values()) {
+      result.put(operation.name(), value.apply(operation));
+    }
+    return result;
+  }
+
+  @Override
+  public int getCapGroupCacheSize() {
+    return manipulator.getCapGroupCacheSize();
+  }
+
+  @Override
+  public int getMonomerInfoCacheSize() {
+    return manipulator.getMonomerInfoCacheSize();
+  }
+
+  @Override
+  public int getLeavingGroupInfoCacheSize() {
+    return manipulator.getLeavingGroupInfoCacheSize();
+  }
+
+  @Override
+  public int getCacheLimit() {
+    return manipulator.getCacheLimit();
+  }
+
+  @Override
+  public void setCacheLimit(int cacheLimit) {
+    manipulator.setCacheLimit(cacheLimit);
+  }
+
+  @Override
+  public long getDeadlineMillis() {
+    return manipulator.getDeadline(TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void setDeadlineMillis(long deadline) {
+    manipulator.setDeadline(deadline, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String getLayoutMode() {
+    return manipulator.getLayoutMode().name();
+  }
+
+  @Override
+  public void setLayoutMode(String layoutMode) {
+    manipulator.setLayoutMode(ChemaxonManipulator.LayoutMode.valueOf(layoutMode));
+  }
+
+  @Override
+  public void clearCaches() {
+    manipulator.clearCaches();
+  }
+
+  @Override
+  public void resetStatistics() {
+    manipulator.getStatistics().reset();
+  }
+
+}
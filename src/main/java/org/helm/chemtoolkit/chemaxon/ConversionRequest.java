@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
+
+/**
+ * {@code ConversionRequest} input structure together with the representations to produce from it, see
+ * {@link ChemaxonManipulator#convert(ConversionRequest)}
+ *
+ * @author chistyakov
+ */
+public class ConversionRequest {
+
+  /**
+   * representations which can be requested
+   */
+  public enum Output {
+    SMILES, CANONICAL_SMILES, MOLFILE, MOLECULE_INFO, IMAGE
+  }
+
+  private final String data;
+
+  private final StType type;
+
+  private final Set<Output> outputs = EnumSet.noneOf(Output.class);
+
+  private OutputType imageType = OutputType.PNG;
+
+  private int imageWidth;
+
+  private int imageHeight;
+
+  private int imageRgb;
+
+  /**
+   * @param data SMILES or molfile
+   * @param type type of the input, {@link StType#SMILES} or {@link StType#MOLFILE}
+   * @param outputs requested outputs, an image is requested with {@link #withImage(OutputType, int, int, int)}
+   */
+  public ConversionRequest(String data, StType type, Output... outputs) {
+    this.data = data;
+    this.type = type;
+    for (Output output : outputs) {
+      if (output != Output.IMAGE) {
+        this.outputs.add(output);
+      }
+    }
+  }
+
+  /**
+   * requests an image, parameters as for {@link ChemaxonManipulator#renderMol(String, OutputType, int, int, int)}
+   *
+   * @param outputType image format
+   * @param width width
+   * @param height height
+   * @param rgb background color
+   * @return this request
+   */
+  public ConversionRequest withImage(OutputType outputType, int width, int height, int rgb) {
+    this.outputs.add(Output.IMAGE);
+    this.imageType = outputType;
+    this.imageWidth = width;
+    this.imageHeight = height;
+    this.imageRgb = rgb;
+    return this;
+  }
+
+  public String getData() {
+    return data;
+  }
+
+  public StType getType() {
+    return type;
+  }
+
+  /**
+   * @param output output
+   * @return true if the output was requested
+   */
+  public boolean isRequested(Output output) {
+    return outputs.contains(output);
+  }
+
+  public OutputType getImageType() {
+    return imageType;
+  }
+
+  public int getImageWidth() {
+    return imageWidth;
+  }
+
+  public int getImageHeight() {
+    return imageHeight;
+  }
+
+  public int getImageRgb() {
+    return imageRgb;
+  }
+
+}
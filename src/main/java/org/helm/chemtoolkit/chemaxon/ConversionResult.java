@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import org.helm.chemtoolkit.MoleculeInfo;
+
+/**
+ * {@code ConversionResult} representations produced for a {@link ConversionRequest}, outputs which were not requested
+ * are null
+ *
+ * @author chistyakov
+ */
+public class ConversionResult {
+
+  private String smiles;
+
+  private String canonicalSmiles;
+
+  private String molFile;
+
+  private MoleculeInfo moleculeInfo;
+
+  private byte[] image;
+
+  public String getSmiles() {
+    return smiles;
+  }
+
+  void setSmiles(String smiles) {
+    this.smiles = smiles;
+  }
+
+  public String getCanonicalSmiles() {
+    return canonicalSmiles;
+  }
+
+  void setCanonicalSmiles(String canonicalSmiles) {
+    this.canonicalSmiles = canonicalSmiles;
+  }
+
+  public String getMolFile() {
+    return molFile;
+  }
+
+  void setMolFile(String molFile) {
+    this.molFile = molFile;
+  }
+
+  public MoleculeInfo getMoleculeInfo() {
+    return moleculeInfo;
+  }
+
+  void setMoleculeInfo(MoleculeInfo moleculeInfo) {
+    this.moleculeInfo = moleculeInfo;
+  }
+
+  public byte[] getImage() {
+    return image;
+  }
+
+  void setImage(byte[] image) {
+    this.image = image;
+  }
+
+}
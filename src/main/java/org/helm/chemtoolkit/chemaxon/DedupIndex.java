@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code DedupIndex} maps structures to registration ids by a 64 bit hash of their canonical SMILES, so duplicates in
+ * a bulk load are found in-process. The table is split into stripes with their own lock and primitive arrays, inserts
+ * and lookups of different threads rarely contend and no objects are kept per entry.
+ * <p>
+ * Only the key is kept, not the canonical SMILES. Two different structures share a key with a probability of about
+ * n&sup2; / 2<sup>65</sup>, i.e. below 10<sup>-5</sup> for ten million structures; the second one is then reported as
+ * a duplicate of the first. The index does not detect this, a registry which can not accept it has to compare the
+ * structure of the returned id with the new one.
+ *
+ * @author chistyakov
+ */
+public class DedupIndex {
+
+  /** returned if a structure is not registered */
+  public static final long NO_ID = -1;
+
+  private static final int MAGIC = 0x48444901;
+
+  private static final int STRIPE_BITS = 6;
+
+  private final ChemaxonManipulator manipulator;
+
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  /**
+   * @param manipulator manipulator used to canonicalize the structures
+   */
+  public DedupIndex(ChemaxonManipulator manipulator) {
+    this.manipulator = manipulator;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * registers a structure unless it is registered already
+   *
+   * @param smiles structure in any SMILES notation
+   * @param id registration id to use if the structure is new, not negative
+   * @return the id of the structure, the given one if it is new
+   * @throws CTKException if the SMILES can not be canonicalized
+   */
+  public long register(String smiles, long id) throws CTKException {
+    if (id < 0) {
+      throw new CTKException("negative registration id");
+    }
+    return putIfAbsent(key(manipulator.canonicalize(smiles)), id);
+  }
+
+  /**
+   * @param smiles structure in any SMILES notation
+   * @return the id of the structure, {@link #NO_ID} if it is not registered
+   * @throws CTKException if the SMILES can not be canonicalized
+   */
+  public long lookup(String smiles) throws CTKException {
+    return get(key(manipulator.canonicalize(smiles)));
+  }
+
+  /**
+   * registers a batch. The structures are canonicalized in one task per thread of the executor, then inserted in
+   * order, so record i uses the id firstId + i if it is new and duplicates within the batch get the id of their first
+   * occurrence.
+   *
+   * @param smiles structures
+   * @param firstId id of the first record
+   * @param executor executor for the canonicalization
+   * @param threads number of tasks
+   * @return ids of the records, the id of the first registration for duplicates
+   * @throws CTKException if a SMILES can not be canonicalized
+   */
+  public long[] registerAll(final List<String> smiles, long firstId, ExecutorService executor, int threads)
+      throws CTKException {
+    if (firstId < 0) {
+      throw new CTKException("negative registration id");
+    }
+    final long[] keys = new long[smiles.size()];
+    int tasks = Math.max(1, threads);
+    int chunk = Math.max(1, (smiles.size() + tasks - 1) / tasks);
+    List<Callable<Void>> chunks = new ArrayList<>();
+    for (int start = 0; start < smiles.size(); start += chunk) {
+      final int from = start;
+      final int to = Math.min(smiles.size(), start + chunk);
+      chunks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws CTKException {
+          for (int i = from; i < to; i++) {
+            keys[i] = key(manipulator.canonicalize(smiles.get(i)));
+          }
+          return null;
+        }
+      });
+    }
+    Tasks.invokeAll(executor, chunks, "registration");
+    long[] ids = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ids[i] = putIfAbsent(keys[i], firstId + i);
+    }
+    return ids;
+  }
+
+  /**
+   * @param key key of a canonical SMILES, see {@link #key(String)}
+   * @param id registration id
+   * @return the id already stored for the key, or the given one
+   */
+  public long putIfAbsent(long key, long id) {
+    return stripe(key).putIfAbsent(key, id);
+  }
+
+  /**
+   * @param key key of a canonical SMILES
+   * @return stored id, {@link #NO_ID} if there is none
+   */
+  public long get(long key) {
+    return stripe(key).get(key);
+  }
+
+  /**
+   * @return number of registered structures
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * writes all keys and ids to a file, concurrent inserts may or may not be included
+   *
+   * @param file target file
+   * @throws IOException if the file can not be written
+   */
+  public void save(Path file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      for (Stripe stripe : stripes) {
+        stripe.write(out);
+      }
+    }
+  }
+
+  /**
+   * reads an index written by {@link #save(Path)}
+   *
+   * @param manipulator manipulator used to canonicalize further structures
+   * @param file source file
+   * @return index
+   * @throws IOException if the file can not be read or is no index
+   */
+  public static DedupIndex load(ChemaxonManipulator manipulator, Path file) throws IOException {
+    DedupIndex index = new DedupIndex(manipulator);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("not a dedup index");
+      }
+      for (int i = 0; i < index.stripes.length; i++) {
+        int size = in.readInt();
+        for (int j = 0; j < size; j++) {
+          long key = in.readLong();
+          index.putIfAbsent(key, in.readLong());
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @param canonicalSmiles canonical SMILES
+   * @return 64 bit key, never 0
+   */
+  public static long key(String canonicalSmiles) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : canonicalSmiles.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    // finalizer of MurmurHash3, spreads FNV-1a over all bits
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == 0 ? 1 : hash;
+  }
+
+  private Stripe stripe(long key) {
+    return stripes[(int) (key >>> (64 - STRIPE_BITS))];
+  }
+
+  /**
+   * {@code Stripe} open addressing table with linear probing, key 0 marks an empty slot
+   */
+  private static final class Stripe {
+
+    private long[] keys = new long[64];
+
+    private long[] ids = new long[64];
+
+    private int size;
+
+    private synchronized long get(long key) {
+      int mask = keys.length - 1;
+      for (int i = (int) key & mask;; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return ids[i];
+        }
+        if (keys[i] == 0) {
+          return NO_ID;
+        }
+      }
+    }
+
+    private synchronized long putIfAbsent(long key, long id) {
+      int mask = keys.length - 1;
+      int i = (int) key & mask;
+      while (keys[i] != 0) {
+        if (keys[i] == key) {
+          return ids[i];
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      ids[i] = id;
+      if (++size * 4 > keys.length * 3) {
+        grow();
+      }
+      return id;
+    }
+
+    private synchronized int size() {
+      return size;
+    }
+
+    private synchronized void write(DataOutputStream out) throws IOException {
+      out.writeInt(size);
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0) {
+          out.writeLong(keys[i]);
+          out.writeLong(ids[i]);
+        }
+      }
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      long[] oldIds = ids;
+      keys = new long[oldKeys.length * 2];
+      ids = new long[oldIds.length * 2];
+      int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] != 0) {
+          int i = (int) oldKeys[j] & mask;
+          while (keys[i] != 0) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = oldKeys[j];
+          ids[i] = oldIds[j];
+        }
+      }
+    }
+  }
+
+}
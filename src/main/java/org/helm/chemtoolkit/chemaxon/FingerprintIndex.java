@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code FingerprintIndex} in-memory similarity search over {@link PathFingerprint}s. The fingerprints are stored
+ * back to back in one long array together with their bit counts, a query scans them with popcount based Tanimoto and
+ * keeps the best k hits. Large indexes are scanned in parallel ranges.
+ *
+ * @author chistyakov
+ */
+public class FingerprintIndex {
+
+  private static final int WORDS = PathFingerprint.WORDS;
+
+  private static final Comparator<Hit> BY_SIMILARITY = new Comparator<Hit>() {
+    @Override
+    public int compare(Hit h1, Hit h2) {
+      return Double.compare(h1.similarity, h2.similarity);
+    }
+  };
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final List<String> ids = new ArrayList<>();
+
+  private long[] fingerprints = new long[64 * WORDS];
+
+  private int[] bitCounts = new int[64];
+
+  /**
+   * adds a molecule
+   *
+   * @param id id returned in hits, e.g. the monomer id
+   * @param molecule molecule, not modified
+   */
+  public void add(String id, ChemMolecule molecule) {
+    add(id, PathFingerprint.generate(molecule));
+  }
+
+  /**
+   * adds a fingerprint
+   *
+   * @param id id returned in hits
+   * @param fingerprint fingerprint of {@link PathFingerprint#WORDS} longs
+   */
+  public void add(String id, long[] fingerprint) {
+    lock.writeLock().lock();
+    try {
+      int n = ids.size();
+      if (n == bitCounts.length) {
+        fingerprints = Arrays.copyOf(fingerprints, 2 * n * WORDS);
+        bitCounts = Arrays.copyOf(bitCounts, 2 * n);
+      }
+      System.arraycopy(fingerprint, 0, fingerprints, n * WORDS, WORDS);
+      bitCounts[n] = bitCount(fingerprint, 0);
+      ids.add(id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of fingerprints
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return ids.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * scans the index on the calling thread
+   *
+   * @param molecule query molecule
+   * @param k maximum number of hits
+   * @return up to k hits, most similar first
+   */
+  public List<Hit> search(ChemMolecule molecule, int k) {
+    long[] query = PathFingerprint.generate(molecule);
+    lock.readLock().lock();
+    try {
+      return sorted(scan(query, bitCount(query, 0), k, 0, ids.size()));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * scans the index in parallel ranges
+   *
+   * @param molecule query molecule
+   * @param k maximum number of hits
+   * @param executor executor for the ranges
+   * @param threads number of ranges
+   * @return up to k hits, most similar first
+   * @throws CTKException if the search was interrupted
+   */
+  public List<Hit> search(ChemMolecule molecule, final int k, ExecutorService executor, int threads)
+      throws CTKException {
+    final long[] query = PathFingerprint.generate(molecule);
+    final int queryBits = bitCount(query, 0);
+    lock.readLock().lock();
+    try {
+      int size = ids.size();
+      int tasks = Math.max(1, threads);
+      int chunk = Math.max(1, (size + tasks - 1) / tasks);
+      List<Callable<PriorityQueue<Hit>>> ranges = new ArrayList<>();
+      for (int start = 0; start < size; start += chunk) {
+        final int from = start;
+        final int to = Math.min(size, start + chunk);
+        ranges.add(new Callable<PriorityQueue<Hit>>() {
+          @Override
+          public PriorityQueue<Hit> call() {
+            return scan(query, queryBits, k, from, to);
+          }
+        });
+      }
+      PriorityQueue<Hit> best = new PriorityQueue<>(Math.max(1, k), BY_SIMILARITY);
+      for (PriorityQueue<Hit> hits : Tasks.invokeAll(executor, ranges, "search")) {
+        for (Hit hit : hits) {
+          offer(best, hit, k);
+        }
+      }
+      return sorted(best);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * scans the fingerprints from..to-1, the caller holds the read lock
+   */
+  private PriorityQueue<Hit> scan(long[] query, int queryBits, int k, int from, int to) {
+    PriorityQueue<Hit> best = new PriorityQueue<>(Math.max(1, k), BY_SIMILARITY);
+    if (k <= 0) {
+      return best;
+    }
+    for (int i = from; i < to; i++) {
+      // Tanimoto = c / (a + b - c) can not exceed min(a, b) / max(a, b)
+      int bits = bitCounts[i];
+      if (best.size() == k
+          && (double) Math.min(bits, queryBits) / Math.max(1, Math.max(bits, queryBits)) <= best.peek().similarity) {
+        continue;
+      }
+      int offset = i * WORDS;
+      int common = 0;
+      for (int w = 0; w < WORDS; w++) {
+        common += Long.bitCount(fingerprints[offset + w] & query[w]);
+      }
+      int all = bits + queryBits - common;
+      double similarity = all == 0 ? 1 : (double) common / all;
+      if (best.size() < k || similarity > best.peek().similarity) {
+        offer(best, new Hit(ids.get(i), similarity), k);
+      }
+    }
+    return best;
+  }
+
+  private static void offer(PriorityQueue<Hit> best, Hit hit, int k) {
+    if (best.size() < k) {
+      best.add(hit);
+    } else if (k > 0 && hit.similarity > best.peek().similarity) {
+      best.poll();
+      best.add(hit);
+    }
+  }
+
+  private static List<Hit> sorted(PriorityQueue<Hit> best) {
+    List<Hit> hits = new ArrayList<>(best);
+    Collections.sort(hits, Collections.reverseOrder(BY_SIMILARITY));
+    return hits;
+  }
+
+  private static int bitCount(long[] fingerprint, int offset) {
+    int count = 0;
+    for (int w = 0; w < WORDS; w++) {
+      count += Long.bitCount(fingerprint[offset + w]);
+    }
+    return count;
+  }
+
+  /**
+   * {@code Hit} a search result
+   */
+  public static final class Hit {
+
+    private final String id;
+
+    private final double similarity;
+
+    private Hit(String id, double similarity) {
+      this.id = id;
+      this.similarity = similarity;
+    }
+
+    /**
+     * @return id given when the fingerprint was added
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return Tanimoto coefficient to the query
+     */
+    public double getSimilarity() {
+      return similarity;
+    }
+
+    @Override
+    public String toString() {
+      return id + " " + similarity;
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@code HistogramMetricsSink} keeps a count, the total and the maximum, and a histogram with power-of-two buckets of
+ * the durations per stage. Recording is lock-free and does not allocate. Percentiles are reported as the upper bound
+ * of the bucket they fall into, i.e. with a resolution of a factor of two.
+ *
+ * @author chistyakov
+ */
+public class HistogramMetricsSink implements MetricsSink {
+
+  private static final int BUCKETS = 64;
+
+  private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+  public HistogramMetricsSink() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void record(Stage stage, long nanos) {
+    histograms[stage.ordinal()].record(nanos);
+  }
+
+  /**
+   * @param stage stage
+   * @return number of recorded durations
+   */
+  public long getCount(Stage stage) {
+    return histograms[stage.ordinal()].count.get();
+  }
+
+  /**
+   * @param stage stage
+   * @return sum of the recorded durations in nanoseconds
+   */
+  public long getTotalNanos(Stage stage) {
+    return histograms[stage.ordinal()].total.get();
+  }
+
+  /**
+   * @param stage stage
+   * @return longest recorded duration in nanoseconds
+   */
+  public long getMaxNanos(Stage stage) {
+    return histograms[stage.ordinal()].max.get();
+  }
+
+  /**
+   * @param stage stage
+   * @param percentile percentile between 0 and 100
+   * @return upper bound in nanoseconds of the bucket holding the percentile, 0 if nothing was recorded
+   */
+  public long getPercentileNanos(Stage stage, double percentile) {
+    return histograms[stage.ordinal()].percentile(percentile);
+  }
+
+  /**
+   * @param stage stage
+   * @return bucket counts, bucket i holds durations below 2^i nanoseconds and at least 2^(i-1)
+   */
+  public long[] getBuckets(Stage stage) {
+    AtomicLongArray buckets = histograms[stage.ordinal()].buckets;
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = buckets.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * clears all stages
+   */
+  public void reset() {
+    for (Histogram histogram : histograms) {
+      histogram.clear();
+    }
+  }
+
+  /**
+   * @return one line per stage with count, mean, p50, p90, p99 and max in microseconds
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Stage stage : Stage.values()) {
+      long count = getCount(stage);
+      if (count == 0) {
+        continue;
+      }
+      sb.append(stage).append(" count=").append(count);
+      sb.append(" mean=").append(getTotalNanos(stage) / count / 1000).append("us");
+      sb.append(" p50=").append(getPercentileNanos(stage, 50) / 1000).append("us");
+      sb.append(" p90=").append(getPercentileNanos(stage, 90) / 1000).append("us");
+      sb.append(" p99=").append(getPercentileNanos(stage, 99) / 1000).append("us");
+      sb.append(" max=").append(getMaxNanos(stage) / 1000).append("us\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * {@code Histogram} durations of one stage or operation in power-of-two buckets, also used by
+   * {@link OperationStatistics}
+   */
+  static final class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+      count.incrementAndGet();
+      total.addAndGet(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    void clear() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+    }
+
+    long count() {
+      return count.get();
+    }
+
+    long total() {
+      return total.get();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    long percentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return i == 0 ? 0 : i == BUCKETS - 1 ? max.get() : Math.min(1L << i, max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code IncrementalLayout} places a molecule which is about to be merged next to the attachment point of the other
+ * molecule, keeping the 2D coordinates both of them already have. The second molecule is moved rigidly so that its
+ * attachment atom takes the place of the first R-group atom and its R-group atom points to the first attachment atom.
+ * If this overlaps with atoms of the first molecule, the moved molecule is turned around the first attachment atom.
+ * Rotations only, a mirrored placement would invert the wedge bonds.
+ *
+ * @author chistyakov
+ */
+final class IncrementalLayout {
+
+  /** rotations around the first attachment atom tried in turn, in degrees */
+  private static final double[] ROTATIONS = {0, 30, -30, 60, -60, 90, -90, 120, -120};
+
+  /** atoms closer than this fraction of the attachment bond length overlap */
+  private static final double OVERLAP = 0.5;
+
+  private IncrementalLayout() {
+  }
+
+  /**
+   * moves the second molecule next to the first one
+   *
+   * @param first molecule which stays in place
+   * @param firstRgroup R-group atom of the first molecule
+   * @param second molecule to move
+   * @param secondRgroup R-group atom of the second molecule
+   */
+  static void place(Molecule first, MolAtom firstRgroup, Molecule second, MolAtom secondRgroup) {
+    if (first.getDim() != 2 || second.getDim() != 2 || firstRgroup.getBondCount() != 1
+        || secondRgroup.getBondCount() != 1) {
+      return;
+    }
+    MolAtom atom1 = firstRgroup.getBond(0).getOtherAtom(firstRgroup);
+    MolAtom atom2 = secondRgroup.getBond(0).getOtherAtom(secondRgroup);
+
+    double targetX = atom1.getX() - firstRgroup.getX();
+    double targetY = atom1.getY() - firstRgroup.getY();
+    double bondLength = Math.sqrt(targetX * targetX + targetY * targetY);
+    double theta = Math.atan2(targetY, targetX)
+        - Math.atan2(secondRgroup.getY() - atom2.getY(), secondRgroup.getX() - atom2.getX());
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+
+    MolAtom[] moved = second.getAtomArray();
+    double[] x = new double[moved.length];
+    double[] y = new double[moved.length];
+    for (int i = 0; i < moved.length; i++) {
+      double dx = moved[i].getX() - atom2.getX();
+      double dy = moved[i].getY() - atom2.getY();
+      x[i] = firstRgroup.getX() + cos * dx - sin * dy;
+      y[i] = firstRgroup.getY() + sin * dx + cos * dy;
+    }
+
+    double limit = bondLength > 0 ? OVERLAP * bondLength : OVERLAP;
+    Grid fixed = new Grid(first.getAtomArray(), firstRgroup, atom1, reach(atom1, x, y) + limit, limit);
+    double[] rotatedX = new double[moved.length];
+    double[] rotatedY = new double[moved.length];
+    double[] bestX = x;
+    double[] bestY = y;
+    int bestOverlaps = Integer.MAX_VALUE;
+    for (double rotation : ROTATIONS) {
+      double phi = Math.toRadians(rotation);
+      double c = Math.cos(phi);
+      double s = Math.sin(phi);
+      for (int i = 0; i < moved.length; i++) {
+        double dx = x[i] - atom1.getX();
+        double dy = y[i] - atom1.getY();
+        rotatedX[i] = atom1.getX() + c * dx - s * dy;
+        rotatedY[i] = atom1.getY() + s * dx + c * dy;
+      }
+      int overlaps = fixed.countOverlaps(moved, secondRgroup, rotatedX, rotatedY);
+      if (overlaps < bestOverlaps) {
+        bestOverlaps = overlaps;
+        bestX = rotatedX.clone();
+        bestY = rotatedY.clone();
+      }
+      if (overlaps == 0) {
+        break;
+      }
+    }
+
+    for (int i = 0; i < moved.length; i++) {
+      moved[i].setXY(bestX[i], bestY[i]);
+    }
+  }
+
+  /**
+   * @return the largest distance of a moved atom from the center of the rotations
+   */
+  private static double reach(MolAtom center, double[] x, double[] y) {
+    double reach2 = 0;
+    for (int i = 0; i < x.length; i++) {
+      double dx = x[i] - center.getX();
+      double dy = y[i] - center.getY();
+      reach2 = Math.max(reach2, dx * dx + dy * dy);
+    }
+    return Math.sqrt(reach2);
+  }
+
+  /**
+   * {@code Grid} fixed atoms within reach of the rotations, bucketed into cells as large as the overlap distance so
+   * that each moved atom is compared with the atoms of its neighbouring cells only
+   */
+  private static final class Grid {
+
+    private final Map<Long, List<MolAtom>> cells = new HashMap<>();
+
+    private final double size;
+
+    Grid(MolAtom[] atoms, MolAtom rgroup, MolAtom center, double radius, double size) {
+      this.size = size;
+      double radius2 = radius * radius;
+      for (MolAtom atom : atoms) {
+        double dx = atom.getX() - center.getX();
+        double dy = atom.getY() - center.getY();
+        if (atom == rgroup || dx * dx + dy * dy > radius2) {
+          continue;
+        }
+        Long key = key(cell(atom.getX()), cell(atom.getY()));
+        List<MolAtom> cell = cells.get(key);
+        if (cell == null) {
+          cell = new ArrayList<>();
+          cells.put(key, cell);
+        }
+        cell.add(atom);
+      }
+    }
+
+    /**
+     * counts the pairs of a moved and a fixed atom lying too close to each other
+     */
+    int countOverlaps(MolAtom[] moved, MolAtom movedRgroup, double[] x, double[] y) {
+      double limit2 = size * size;
+      int overlaps = 0;
+      for (int i = 0; i < moved.length; i++) {
+        if (moved[i] == movedRgroup) {
+          continue;
+        }
+        long cellX = cell(x[i]);
+        long cellY = cell(y[i]);
+        for (long cx = cellX - 1; cx <= cellX + 1; cx++) {
+          for (long cy = cellY - 1; cy <= cellY + 1; cy++) {
+            List<MolAtom> cell = cells.get(key(cx, cy));
+            if (cell == null) {
+              continue;
+            }
+            for (MolAtom atom : cell) {
+              double dx = x[i] - atom.getX();
+              double dy = y[i] - atom.getY();
+              if (dx * dx + dy * dy < limit2) {
+                overlaps++;
+              }
+            }
+          }
+        }
+      }
+      return overlaps;
+    }
+
+    private long cell(double coordinate) {
+      return (long) Math.floor(coordinate / size);
+    }
+
+    private static Long key(long cellX, long cellY) {
+      return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+  }
+
+}
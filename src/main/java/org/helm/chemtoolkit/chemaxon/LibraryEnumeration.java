@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code LibraryEnumeration} enumerates a combinatorial library: a scaffold with R-groups and, for every R-group, a
+ * set of monomers attached to it. Every combination is assembled like {@link ChemaxonManipulator#merge} and handed to
+ * a consumer as soon as it is built, so the products are never collected in memory.
+ * <p>
+ * The merges and canonical SMILES are computed on the worker threads and counted in the statistics of the
+ * manipulator. They are not bounded by its deadline, nor are the products written to its caches or its journal.
+ * <p>
+ * The products are numbered like the digits of a number, the last position changing fastest. Ranges of product
+ * numbers are split recursively across a fork/join pool. Within a range the scaffold with all positions but the last
+ * one is built once and cloned for every monomer of the last position. The templates are cloned and never modified.
+ *
+ * @author chistyakov
+ */
+public class LibraryEnumeration {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(LibraryEnumeration.class);
+
+  /** ranges with at most this number of products are not split any further */
+  private static final int LEAF_SIZE = 256;
+
+  private final ChemaxonManipulator manipulator;
+
+  private final AbstractMolecule scaffold;
+
+  private final List<Position> positions = new ArrayList<>();
+
+  private boolean canonicalSmiles;
+
+  /**
+   * @param manipulator manipulator used for all merges
+   * @param scaffold scaffold template, cloned on execution and never modified
+   */
+  public LibraryEnumeration(ChemaxonManipulator manipulator, AbstractMolecule scaffold) {
+    this.manipulator = manipulator;
+    this.scaffold = scaffold;
+  }
+
+  /**
+   * adds a variable position of the scaffold
+   *
+   * @param scaffoldRgroup R-group number on the scaffold
+   * @param monomers monomer templates for this position, cloned on execution and never modified
+   * @param monomerRgroup R-group number by which every monomer is attached
+   * @return this
+   * @throws CTKException if there are no monomers
+   */
+  public LibraryEnumeration addPosition(int scaffoldRgroup, List<AbstractMolecule> monomers, int monomerRgroup)
+      throws CTKException {
+    if (monomers.isEmpty()) {
+      throw new CTKException("no monomers for R" + scaffoldRgroup);
+    }
+    positions.add(new Position(scaffoldRgroup, new ArrayList<>(monomers), monomerRgroup));
+    return this;
+  }
+
+  /**
+   * @param canonicalSmiles true to hand out the products as canonical SMILES instead of molecules
+   * @return this
+   */
+  public LibraryEnumeration setCanonicalSmiles(boolean canonicalSmiles) {
+    this.canonicalSmiles = canonicalSmiles;
+    return this;
+  }
+
+  /**
+   * @return number of products
+   */
+  public long size() {
+    long size = 1;
+    for (Position position : positions) {
+      size = Math.multiplyExact(size, position.monomers.size());
+    }
+    return size;
+  }
+
+  /**
+   * enumerates the library on a temporary pool sized by the number of processors
+   *
+   * @param consumer receives every product, called concurrently from the worker threads
+   * @return number of products
+   * @throws CTKException if a merge failed
+   */
+  public long enumerate(Consumer<Product> consumer) throws CTKException {
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      return enumerate(consumer, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * enumerates the library on the given pool, stopping at the first failure
+   *
+   * @param consumer receives every product, called concurrently from the worker threads
+   * @param pool pool for the enumeration
+   * @return number of products handed to the consumer
+   * @throws CTKException if a merge failed
+   */
+  public long enumerate(Consumer<Product> consumer, ForkJoinPool pool) throws CTKException {
+    if (positions.isEmpty()) {
+      throw new CTKException("no positions to enumerate");
+    }
+    Run run = new Run(new ArrayList<>(positions), consumer, canonicalSmiles);
+    long size = size();
+    pool.invoke(run.new Range(0, size));
+    if (run.failure.get() != null) {
+      throw run.failure.get();
+    }
+    LOG.debug("enumerated " + run.count.get() + " products");
+    return run.count.get();
+  }
+
+  /**
+   * {@code Position} variable position of the scaffold
+   */
+  private static final class Position {
+
+    private final int scaffoldRgroup;
+
+    private final List<AbstractMolecule> monomers;
+
+    private final int monomerRgroup;
+
+    private Position(int scaffoldRgroup, List<AbstractMolecule> monomers, int monomerRgroup) {
+      this.scaffoldRgroup = scaffoldRgroup;
+      this.monomers = monomers;
+      this.monomerRgroup = monomerRgroup;
+    }
+  }
+
+  /**
+   * {@code Run} state of one enumeration
+   */
+  private final class Run {
+
+    private final List<Position> positions;
+
+    private final Consumer<Product> consumer;
+
+    private final boolean smiles;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicReference<CTKException> failure = new AtomicReference<>();
+
+    private Run(List<Position> positions, Consumer<Product> consumer, boolean smiles) {
+      this.positions = positions;
+      this.consumer = consumer;
+      this.smiles = smiles;
+    }
+
+    /**
+     * decodes the product number into the monomer index of every position
+     */
+    private int[] choices(long index) {
+      int[] choices = new int[positions.size()];
+      for (int i = choices.length - 1; i >= 0; i--) {
+        int size = positions.get(i).monomers.size();
+        choices[i] = (int) (index % size);
+        index /= size;
+      }
+      return choices;
+    }
+
+    /**
+     * builds the scaffold with the monomers of all positions but the last one
+     *
+     * @return the partial product and the index of the Marvin atom of the last scaffold R-group
+     */
+    private Prefix prefix(int[] choices) throws CTKException {
+      AbstractMolecule molecule = scaffold.cloneMolecule();
+      IAtomBase[] rgroups = new IAtomBase[positions.size()];
+      for (int i = 0; i < rgroups.length; i++) {
+        rgroups[i] = molecule.getRGroupAtom(positions.get(i).scaffoldRgroup, true);
+      }
+      for (int i = 0; i < rgroups.length - 1; i++) {
+        Position position = positions.get(i);
+        AbstractMolecule monomer = position.monomers.get(choices[i]).cloneMolecule();
+        molecule = manipulator.mergeInline(molecule, rgroups[i], monomer, monomer.getRGroupAtom(position.monomerRgroup,
+            true));
+      }
+      ChemMolecule chem = (ChemMolecule) molecule;
+      int last = chem.peekMolecule().indexOf(((ChemAtom) rgroups[rgroups.length - 1]).peekMolAtom());
+      return new Prefix(chem, last);
+    }
+
+    private void emit(long index, int[] choices, Prefix prefix) throws CTKException {
+      Position position = positions.get(positions.size() - 1);
+      AbstractMolecule product = prefix.molecule.cloneMolecule();
+      AbstractMolecule monomer = position.monomers.get(choices[choices.length - 1]).cloneMolecule();
+      product = manipulator.mergeInline(product, product.getIAtomArray().get(prefix.rgroup), monomer,
+          monomer.getRGroupAtom(position.monomerRgroup, true));
+      if (smiles) {
+        consumer.accept(new Product(index, choices, null, manipulator.canonicalSmiles(product)));
+      } else {
+        consumer.accept(new Product(index, choices, product, null));
+      }
+      count.incrementAndGet();
+    }
+
+    /**
+     * {@code Range} consecutive product numbers, split in halves until small enough
+     */
+    private final class Range extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private final long from;
+
+      private final long to;
+
+      private Range(long from, long to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (to - from > LEAF_SIZE) {
+          long middle = from + (to - from) / 2;
+          invokeAll(new Range(from, middle), new Range(middle, to));
+          return;
+        }
+        try {
+          Prefix prefix = null;
+          int[] previous = null;
+          for (long index = from; index < to && failure.get() == null; index++) {
+            int[] choices = choices(index);
+            if (previous == null || !samePrefix(previous, choices)) {
+              prefix = prefix(choices);
+            }
+            emit(index, choices, prefix);
+            previous = choices;
+          }
+        } catch (CTKException e) {
+          failure.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, new CTKException("unable to enumerate product", e));
+        }
+      }
+
+      private boolean samePrefix(int[] previous, int[] choices) {
+        for (int i = 0; i < choices.length - 1; i++) {
+          if (previous[i] != choices[i]) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * {@code Prefix} partial product shared by the products of a range with the same monomers in all but the last
+   * position
+   */
+  private static final class Prefix {
+
+    private final ChemMolecule molecule;
+
+    /** index of the last scaffold R-group atom, atom order is kept by cloning */
+    private final int rgroup;
+
+    private Prefix(ChemMolecule molecule, int rgroup) {
+      this.molecule = molecule;
+      this.rgroup = rgroup;
+    }
+  }
+
+  /**
+   * {@code Product} a single product of the library
+   */
+  public static final class Product {
+
+    private final long index;
+
+    private final int[] choices;
+
+    private final AbstractMolecule molecule;
+
+    private final String smiles;
+
+    private Product(long index, int[] choices, AbstractMolecule molecule, String smiles) {
+      this.index = index;
+      this.choices = choices;
+      this.molecule = molecule;
+      this.smiles = smiles;
+    }
+
+    /**
+     * @return number of the product, from 0 to the size of the library
+     */
+    public long getIndex() {
+      return index;
+    }
+
+    /**
+     * @return index of the monomer used at each position, in the order the positions were added
+     */
+    public int[] getChoices() {
+      return choices.clone();
+    }
+
+    /**
+     * @return assembled product, null if canonical SMILES were requested
+     */
+    public AbstractMolecule getMolecule() {
+      return molecule;
+    }
+
+    /**
+     * @return canonical SMILES of the product, null unless requested
+     */
+    public String getSmiles() {
+      return smiles;
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@code LruCache} bounded map of the manipulator caches. When a new entry exceeds the limit, the least recently used
+ * entry is evicted. All methods lock the cache, lookups as well since they reorder the entries.
+ *
+ * @author chistyakov
+ */
+final class LruCache<V> {
+
+  private final LinkedHashMap<String, V> entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+      return size() > limit;
+    }
+  };
+
+  private int limit;
+
+  /**
+   * @param limit maximum number of entries
+   */
+  LruCache(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * @param key key
+   * @return cached value, null if there is none
+   */
+  synchronized V get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * stores the value unless the key is cached already, nothing is stored with a limit of 0
+   *
+   * @param key key
+   * @param value value
+   * @return the value cached before, or the given value
+   */
+  synchronized V putIfAbsent(String key, V value) {
+    V existing = entries.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    if (limit > 0) {
+      entries.put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * sets the maximum number of entries, the least recently used entries above the new limit are evicted
+   *
+   * @param limit maximum number of entries
+   */
+  synchronized void setLimit(int limit) {
+    this.limit = limit;
+    Iterator<String> keys = entries.keySet().iterator();
+    for (int excess = entries.size() - limit; excess > 0; excess--) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator;
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code MergePlan} assembles a structure described as a graph: monomer templates are the nodes, R-group connections
+ * are the edges. Every node works on its own clone of the template, so one template can be used by many nodes.
+ * <p>
+ * The connections are executed in rounds. Each round merges pairs of fragments which do not depend on each other, so
+ * the merges of a round run concurrently. Connections closing a cycle are executed last, on the calling thread. The
+ * time of every merge is recorded in the {@link Result}.
+ * <p>
+ * Every merge keeps the order of its connection: the fragment of the first node is the first argument of
+ * {@link AbstractChemistryManipulator#merge}, as with a sequential assembly.
+ *
+ * @author chistyakov
+ */
+public class MergePlan {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(MergePlan.class);
+
+  private final AbstractChemistryManipulator manipulator;
+
+  private final List<AbstractMolecule> templates = new ArrayList<>();
+
+  private final List<int[]> connections = new ArrayList<>();
+
+  /**
+   * @param manipulator manipulator used for all merges
+   */
+  public MergePlan(AbstractChemistryManipulator manipulator) {
+    this.manipulator = manipulator;
+  }
+
+  /**
+   * adds a node to the plan
+   *
+   * @param template monomer template, cloned on execution and never modified
+   * @return index of the node
+   */
+  public int addMonomer(AbstractMolecule template) {
+    templates.add(template);
+    return templates.size() - 1;
+  }
+
+  /**
+   * adds a connection between two nodes, or within one node
+   *
+   * @param node1 index of the first node
+   * @param rgroup1 R-group number on the first node
+   * @param node2 index of the second node
+   * @param rgroup2 R-group number on the second node
+   * @throws CTKException if a node does not exist
+   */
+  public void addConnection(int node1, int rgroup1, int node2, int rgroup2) throws CTKException {
+    if (node1 < 0 || node1 >= templates.size() || node2 < 0 || node2 >= templates.size()) {
+      throw new CTKException("invalid node index");
+    }
+    connections.add(new int[] {node1, rgroup1, node2, rgroup2});
+  }
+
+  /**
+   * executes the plan on a temporary pool sized by the number of processors
+   *
+   * @return assembled molecule and timings
+   * @throws CTKException if a merge failed or the graph is not connected
+   */
+  public Result execute() throws CTKException {
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      return execute(executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * executes the plan, independent merges run concurrently on the given executor
+   *
+   * @param executor executor for the merges
+   * @return assembled molecule and timings
+   * @throws CTKException if a merge failed or the graph is not connected
+   */
+  public Result execute(ExecutorService executor) throws CTKException {
+    if (templates.isEmpty()) {
+      throw new CTKException("no monomers to merge");
+    }
+    int size = templates.size();
+    AbstractMolecule[] fragments = new AbstractMolecule[size];
+    for (int i = 0; i < size; i++) {
+      fragments[i] = templates.get(i).cloneMolecule();
+    }
+
+    /* R-group atoms are resolved before any merge, as the numbers are not unique in merged fragments */
+    List<Connection> tree = new ArrayList<>();
+    List<Connection> cycles = new ArrayList<>();
+    UnionFind components = new UnionFind(size);
+    for (int[] connection : connections) {
+      Connection resolved = new Connection(connection, fragments[connection[0]].getRGroupAtom(connection[1], true),
+          fragments[connection[2]].getRGroupAtom(connection[3], true));
+      if (components.find(connection[0]) == components.find(connection[2])) {
+        cycles.add(resolved);
+      } else {
+        components.join(connection[0], connection[2]);
+        tree.add(resolved);
+      }
+    }
+    if (!components.isConnected()) {
+      throw new CTKException("monomers are not connected");
+    }
+
+    List<Step> steps = new ArrayList<>();
+    UnionFind merged = new UnionFind(size);
+    int round = 0;
+    while (!tree.isEmpty()) {
+      List<Connection> current = new ArrayList<>();
+      List<Connection> remaining = new ArrayList<>();
+      boolean[] busy = new boolean[size];
+      for (Connection connection : tree) {
+        int root1 = merged.find(connection.node1);
+        int root2 = merged.find(connection.node2);
+        if (busy[root1] || busy[root2]) {
+          remaining.add(connection);
+        } else {
+          busy[root1] = true;
+          busy[root2] = true;
+          current.add(connection);
+        }
+      }
+      steps.addAll(runRound(executor, round, current, fragments, merged));
+      tree = remaining;
+      round++;
+    }
+
+    AbstractMolecule molecule = fragments[merged.find(0)];
+    for (Connection connection : cycles) {
+      long start = System.nanoTime();
+      molecule = manipulator.merge(molecule, connection.rgroup1, molecule, connection.rgroup2);
+      steps.add(new Step(round, connection, System.nanoTime() - start));
+    }
+    LOG.debug("merge plan executed in " + round + " rounds, " + cycles.size() + " cycles");
+    return new Result(molecule, steps);
+  }
+
+  /**
+   * merges the connections of one round, which all join different fragments
+   */
+  private List<Step> runRound(ExecutorService executor, final int round, List<Connection> current,
+      final AbstractMolecule[] fragments, UnionFind merged) throws CTKException {
+    List<Callable<Step>> tasks = new ArrayList<>(current.size());
+    for (final Connection connection : current) {
+      final int root1 = merged.find(connection.node1);
+      final int root2 = merged.find(connection.node2);
+      merged.join(root1, root2);
+      tasks.add(new Callable<Step>() {
+        @Override
+        public Step call() throws CTKException {
+          long start = System.nanoTime();
+          fragments[root1] = manipulator.merge(fragments[root1], connection.rgroup1, fragments[root2],
+              connection.rgroup2);
+          return new Step(round, connection, System.nanoTime() - start);
+        }
+      });
+    }
+
+    if (tasks.size() == 1) {
+      List<Step> steps = new ArrayList<>(1);
+      try {
+        steps.add(tasks.get(0).call());
+      } catch (CTKException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CTKException("unable to merge", e);
+      }
+      return steps;
+    }
+    return Tasks.invokeAll(executor, tasks, "merge plan");
+  }
+
+  /**
+   * {@code Connection} connection with its R-group atoms resolved on the node clones
+   */
+  private static final class Connection {
+
+    private final int node1;
+
+    private final int rgroup1Id;
+
+    private final int node2;
+
+    private final int rgroup2Id;
+
+    private final IAtomBase rgroup1;
+
+    private final IAtomBase rgroup2;
+
+    private Connection(int[] connection, IAtomBase rgroup1, IAtomBase rgroup2) {
+      this.node1 = connection[0];
+      this.rgroup1Id = connection[1];
+      this.node2 = connection[2];
+      this.rgroup2Id = connection[3];
+      this.rgroup1 = rgroup1;
+      this.rgroup2 = rgroup2;
+    }
+
+    @Override
+    public String toString() {
+      return node1 + ":R" + rgroup1Id + "-" + node2 + ":R" + rgroup2Id;
+    }
+  }
+
+  /**
+   * {@code Step} a single executed merge
+   */
+  public static final class Step {
+
+    private final int round;
+
+    private final String connection;
+
+    private final long nanos;
+
+    private Step(int round, Connection connection, long nanos) {
+      this.round = round;
+      this.connection = connection.toString();
+      this.nanos = nanos;
+    }
+
+    /**
+     * @return round of the merge, merges of one round ran concurrently; cycles are closed in the last round
+     */
+    public int getRound() {
+      return round;
+    }
+
+    /**
+     * @return the connection as node:Rgroup-node:Rgroup
+     */
+    public String getConnection() {
+      return connection;
+    }
+
+    /**
+     * @return duration of the merge in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    @Override
+    public String toString() {
+      return "round " + round + " " + connection + " " + nanos / 1000 + "us";
+    }
+  }
+
+  /**
+   * {@code Result} assembled molecule together with the executed steps
+   */
+  public static final class Result {
+
+    private final AbstractMolecule molecule;
+
+    private final List<Step> steps;
+
+    private Result(AbstractMolecule molecule, List<Step> steps) {
+      this.molecule = molecule;
+      this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return assembled molecule
+     */
+    public AbstractMolecule getMolecule() {
+      return molecule;
+    }
+
+    /**
+     * @return executed merges in order of completion per round
+     */
+    public List<Step> getSteps() {
+      return steps;
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+/**
+ * {@code MetricsSink} receives the durations of the Marvin calls made by {@link ChemaxonManipulator}. Implementations
+ * are called on the hot path from many threads and must be thread-safe and fast.
+ *
+ * @author chistyakov
+ */
+public interface MetricsSink {
+
+  /**
+   * stages timed by the manipulator
+   */
+  enum Stage {
+    /** reading the input with MolImporter */
+    PARSE,
+    /** 2D layout with clean(2) */
+    CLEAN,
+    /** dearomatize() */
+    DEAROMATIZE,
+    /** export to SMILES, unique SMILES or molfile */
+    EXPORT,
+    /** ElementalAnalyserPlugin */
+    ANALYSE,
+    /** MolPrinter painting */
+    PAINT,
+    /** ImageIO encoding */
+    ENCODE,
+    /** a whole merge */
+    MERGE
+  }
+
+  /** sink ignoring everything, the default */
+  MetricsSink NONE = new MetricsSink() {
+    @Override
+    public void record(Stage stage, long nanos) {
+    }
+  };
+
+  /**
+   * @param stage timed stage
+   * @param nanos duration in nanoseconds
+   */
+  void record(Stage stage, long nanos);
+
+}
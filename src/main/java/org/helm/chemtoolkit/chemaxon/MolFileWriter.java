@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import chemaxon.marvin.io.MolExportException;
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.MolBond;
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code MolFileWriter} writes a molecule as molfile straight to a {@link Writer}, line by line, so that the memory
+ * used does not grow with the size of the molecule. {@link Version#AUTO} writes V2000 as long as the molecule has at
+ * most 999 atoms and bonds, and V3000 otherwise.
+ * <p>
+ * Written are the elements, coordinates, charges, mass numbers, R-groups, bond orders and wedge bonds. The molecule
+ * is written as it is, it should already have 2D coordinates and Kekule bonds. A molecule with radicals, atom
+ * aliases, explicit hydrogens or S-groups is exported by Marvin as a whole instead, see {@link #isSupported(Molecule)}.
+ *
+ * @author chistyakov
+ */
+public final class MolFileWriter {
+
+  /**
+   * molfile version
+   */
+  public enum Version {
+    /** V2000 if possible, V3000 otherwise */
+    AUTO,
+    /** V2000, limited to 999 atoms and bonds */
+    V2000,
+    /** V3000 */
+    V3000
+  }
+
+  private static final int V2000_LIMIT = 999;
+
+  /** maximum number of entries of a V2000 property line */
+  private static final int PROPERTIES_PER_LINE = 8;
+
+  /** maximum length of a V3000 line, longer lines are continued */
+  private static final int V3000_LINE = 80;
+
+  private static final String V3000_FORMAT = "mol:V3";
+
+  private MolFileWriter() {
+  }
+
+  /**
+   * @param molecule molecule to write, not modified
+   * @param writer target, not closed
+   * @param version molfile version
+   * @throws IOException if the target can not be written or the molecule is too large for V2000
+   */
+  public static void write(Molecule molecule, Writer writer, Version version) throws IOException {
+    int atomCount = molecule.getAtomCount();
+    int bondCount = molecule.getBondCount();
+    boolean fits = atomCount <= V2000_LIMIT && bondCount <= V2000_LIMIT;
+    if (version == Version.V2000 && !fits) {
+      throw new IOException("molecule too large for V2000: " + atomCount + " atoms, " + bondCount + " bonds");
+    }
+    if (!isSupported(molecule)) {
+      try {
+        writer.write(molecule.exportToFormat(version == Version.V3000 || !fits ? V3000_FORMAT : "mol"));
+      } catch (MolExportException e) {
+        throw new IOException("unable to export molecule to molfile", e);
+      }
+      writer.flush();
+      return;
+    }
+    writeHeader(molecule, writer);
+    if (version == Version.V3000 || version == Version.AUTO && !fits) {
+      writeV3000(molecule, writer);
+    } else {
+      writeV2000(molecule, writer);
+    }
+    writer.write("M  END\n");
+    writer.flush();
+  }
+
+  /**
+   * @param molecule molecule
+   * @return false if the molecule has properties this writer does not write: radicals, atom aliases, explicit
+   *         hydrogens or S-groups
+   */
+  public static boolean isSupported(Molecule molecule) {
+    if (molecule.getSgroupCount() > 0) {
+      return false;
+    }
+    for (int i = 0; i < molecule.getAtomCount(); i++) {
+      MolAtom atom = molecule.getAtom(i);
+      String alias = atom.getAliasstr();
+      if (atom.getRadical() != 0 || alias != null && !alias.isEmpty() || atom.getExplicitHcount() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeHeader(Molecule molecule, Writer writer) throws IOException {
+    String name = molecule.getName();
+    writer.write(name == null ? "" : name);
+    writer.write('\n');
+    writer.write("  HELMCTK " + new SimpleDateFormat("MMddyyHHmm", Locale.US).format(new Date())
+        + (molecule.getDim() == 3 ? "3D" : "2D") + '\n');
+    writer.write('\n');
+  }
+
+  private static void writeV2000(Molecule molecule, Writer writer) throws IOException {
+    int atomCount = molecule.getAtomCount();
+    int bondCount = molecule.getBondCount();
+    writer.write(String.format(Locale.US, "%3d%3d  0  0%3d  0  0  0  0  0999 V2000\n", atomCount, bondCount,
+        molecule.isAbsStereo() ? 1 : 0));
+    Map<MolAtom, Integer> numbers = new IdentityHashMap<>(2 * atomCount);
+    for (int i = 0; i < atomCount; i++) {
+      MolAtom atom = molecule.getAtom(i);
+      numbers.put(atom, i + 1);
+      writer.write(String.format(Locale.US, "%10.4f%10.4f%10.4f %-3s 0  0  0  0  0  0  0  0  0  0  0  0\n",
+          atom.getX(), atom.getY(), atom.getZ(), symbol(atom)));
+    }
+    for (int i = 0; i < bondCount; i++) {
+      MolBond bond = molecule.getBond(i);
+      int stereo;
+      switch (bond.getFlags() & MolBond.STEREO1_MASK) {
+      case MolBond.UP:
+        stereo = 1;
+        break;
+      case MolBond.WAVY:
+        stereo = 4;
+        break;
+      case MolBond.DOWN:
+        stereo = 6;
+        break;
+      default:
+        stereo = 0;
+        break;
+      }
+      writer.write(String.format(Locale.US, "%3d%3d%3d%3d  0  0  0\n", numbers.get(bond.getAtom1()),
+          numbers.get(bond.getAtom2()), bond.getType(), stereo));
+    }
+    writeProperties(molecule, writer, "CHG");
+    writeProperties(molecule, writer, "ISO");
+    writeProperties(molecule, writer, "RGP");
+  }
+
+  /**
+   * writes the V2000 property lines of the atoms having the property, at most eight atoms per line
+   */
+  private static void writeProperties(Molecule molecule, Writer writer, String property) throws IOException {
+    StringBuilder entries = new StringBuilder();
+    int count = 0;
+    for (int i = 0; i < molecule.getAtomCount(); i++) {
+      int value = property(molecule.getAtom(i), property);
+      if (value == 0) {
+        continue;
+      }
+      entries.append(String.format(Locale.US, " %3d %3d", i + 1, value));
+      if (++count == PROPERTIES_PER_LINE) {
+        writePropertyLine(writer, property, count, entries);
+        entries.setLength(0);
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      writePropertyLine(writer, property, count, entries);
+    }
+  }
+
+  private static void writePropertyLine(Writer writer, String property, int count, CharSequence entries)
+      throws IOException {
+    writer.write("M  " + property + String.format(Locale.US, "%3d", count) + entries + '\n');
+  }
+
+  private static int property(MolAtom atom, String property) {
+    switch (property) {
+    case "CHG":
+      return atom.getCharge();
+    case "ISO":
+      return atom.getMassno();
+    default:
+      return atom.getRgroup();
+    }
+  }
+
+  private static void writeV3000(Molecule molecule, Writer writer) throws IOException {
+    int atomCount = molecule.getAtomCount();
+    int bondCount = molecule.getBondCount();
+    writer.write("  0  0  0     0  0            999 V3000\n");
+    writer.write("M  V30 BEGIN CTAB\n");
+    writeV30(writer, "COUNTS " + atomCount + " " + bondCount + " 0 0 " + (molecule.isAbsStereo() ? 1 : 0));
+    writeV30(writer, "BEGIN ATOM");
+    StringBuilder line = new StringBuilder();
+    Map<MolAtom, Integer> numbers = new IdentityHashMap<>(2 * atomCount);
+    for (int i = 0; i < atomCount; i++) {
+      MolAtom atom = molecule.getAtom(i);
+      numbers.put(atom, i + 1);
+      line.setLength(0);
+      line.append(i + 1).append(' ').append(symbol(atom))
+          .append(String.format(Locale.US, " %.4f %.4f %.4f 0", atom.getX(), atom.getY(), atom.getZ()));
+      if (atom.getCharge() != 0) {
+        line.append(" CHG=").append(atom.getCharge());
+      }
+      if (atom.getMassno() != 0) {
+        line.append(" MASS=").append(atom.getMassno());
+      }
+      if (atom.getRgroup() != 0) {
+        line.append(" RGROUPS=(1 ").append(atom.getRgroup()).append(')');
+      }
+      writeV30(writer, line.toString());
+    }
+    writeV30(writer, "END ATOM");
+    writeV30(writer, "BEGIN BOND");
+    for (int i = 0; i < bondCount; i++) {
+      MolBond bond = molecule.getBond(i);
+      line.setLength(0);
+      line.append(i + 1).append(' ').append(bond.getType()).append(' ')
+          .append(numbers.get(bond.getAtom1())).append(' ').append(numbers.get(bond.getAtom2()));
+      switch (bond.getFlags() & MolBond.STEREO1_MASK) {
+      case MolBond.UP:
+        line.append(" CFG=1");
+        break;
+      case MolBond.WAVY:
+        line.append(" CFG=2");
+        break;
+      case MolBond.DOWN:
+        line.append(" CFG=3");
+        break;
+      default:
+        break;
+      }
+      writeV30(writer, line.toString());
+    }
+    writeV30(writer, "END BOND");
+    writeV30(writer, "END CTAB");
+  }
+
+  /**
+   * writes a V3000 line, continued with a trailing dash if it is too long
+   */
+  private static void writeV30(Writer writer, String content) throws IOException {
+    String prefix = "M  V30 ";
+    int max = V3000_LINE - prefix.length() - 1;
+    int start = 0;
+    while (content.length() - start > max + 1) {
+      writer.write(prefix);
+      writer.write(content, start, max);
+      writer.write("-\n");
+      start += max;
+    }
+    writer.write(prefix);
+    writer.write(content, start, content.length() - start);
+    writer.write('\n');
+  }
+
+  private static String symbol(MolAtom atom) {
+    return atom.getRgroup() != 0 ? "R#" : atom.getSymbol();
+  }
+
+}
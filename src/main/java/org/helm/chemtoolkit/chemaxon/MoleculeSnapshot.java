@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.MolBond;
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code MoleculeSnapshot} immutable copy of the graph of a {@link ChemMolecule} in primitive arrays: atomic numbers,
+ * R-group numbers, bond endpoints and orders, and the adjacency of every atom in compressed sparse row form. Queries
+ * read the arrays directly and do not allocate, except {@link #isConnected()}. A snapshot can be shared between
+ * threads without synchronization; it does not follow later changes of the molecule.
+ *
+ * @author chistyakov
+ */
+public final class MoleculeSnapshot {
+
+  private final int[] atno;
+
+  private final int[] rgroup;
+
+  private final int[] bondAtom1;
+
+  private final int[] bondAtom2;
+
+  private final int[] bondOrder;
+
+  /** neighbors of atom i are adjacentAtoms[adjacencyStart[i] .. adjacencyStart[i + 1] - 1] */
+  private final int[] adjacencyStart;
+
+  private final int[] adjacentAtoms;
+
+  /** bond to the neighbor at the same position of adjacentAtoms */
+  private final int[] adjacentBonds;
+
+  private MoleculeSnapshot(Molecule molecule) {
+    int atomCount = molecule.getAtomCount();
+    int bondCount = molecule.getBondCount();
+    atno = new int[atomCount];
+    rgroup = new int[atomCount];
+    Map<MolAtom, Integer> indexes = new IdentityHashMap<>(2 * atomCount);
+    for (int i = 0; i < atomCount; i++) {
+      MolAtom atom = molecule.getAtom(i);
+      indexes.put(atom, i);
+      atno[i] = atom.getAtno();
+      rgroup[i] = atom.getRgroup();
+    }
+
+    bondAtom1 = new int[bondCount];
+    bondAtom2 = new int[bondCount];
+    bondOrder = new int[bondCount];
+    adjacencyStart = new int[atomCount + 1];
+    for (int i = 0; i < bondCount; i++) {
+      MolBond bond = molecule.getBond(i);
+      bondAtom1[i] = indexes.get(bond.getAtom1());
+      bondAtom2[i] = indexes.get(bond.getAtom2());
+      bondOrder[i] = bond.getType();
+      adjacencyStart[bondAtom1[i] + 1]++;
+      adjacencyStart[bondAtom2[i] + 1]++;
+    }
+    for (int i = 0; i < atomCount; i++) {
+      adjacencyStart[i + 1] += adjacencyStart[i];
+    }
+    adjacentAtoms = new int[2 * bondCount];
+    adjacentBonds = new int[2 * bondCount];
+    int[] fill = new int[atomCount];
+    for (int i = 0; i < bondCount; i++) {
+      int a1 = bondAtom1[i];
+      int a2 = bondAtom2[i];
+      int p1 = adjacencyStart[a1] + fill[a1]++;
+      adjacentAtoms[p1] = a2;
+      adjacentBonds[p1] = i;
+      int p2 = adjacencyStart[a2] + fill[a2]++;
+      adjacentAtoms[p2] = a1;
+      adjacentBonds[p2] = i;
+    }
+  }
+
+  /**
+   * @param molecule molecule to copy, not modified
+   * @return snapshot of the current graph of the molecule
+   */
+  public static MoleculeSnapshot of(ChemMolecule molecule) {
+    return new MoleculeSnapshot(molecule.peekMolecule());
+  }
+
+  /**
+   * @param molecule Marvin molecule to copy, not modified
+   * @return snapshot of the current graph of the molecule
+   */
+  static MoleculeSnapshot of(Molecule molecule) {
+    return new MoleculeSnapshot(molecule);
+  }
+
+  /**
+   * @return number of atoms
+   */
+  public int getAtomCount() {
+    return atno.length;
+  }
+
+  /**
+   * @return number of bonds
+   */
+  public int getBondCount() {
+    return bondOrder.length;
+  }
+
+  /**
+   * @param atom atom index
+   * @return atomic number, {@link MolAtom#RGROUP} for R-group atoms
+   */
+  public int getAtno(int atom) {
+    return atno[atom];
+  }
+
+  /**
+   * @param atom atom index
+   * @return R-group number, 0 if the atom is no R-group
+   */
+  public int getRgroup(int atom) {
+    return rgroup[atom];
+  }
+
+  /**
+   * @param rgroupNumber R-group number
+   * @return index of the first atom with the R-group number, -1 if there is none
+   */
+  public int findRgroup(int rgroupNumber) {
+    for (int i = 0; i < rgroup.length; i++) {
+      if (rgroup[i] == rgroupNumber) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param atomicNumber atomic number
+   * @return number of atoms of the element
+   */
+  public int countAtoms(int atomicNumber) {
+    int count = 0;
+    for (int a : atno) {
+      if (a == atomicNumber) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * adds the number of atoms per atomic number to the histogram, e.g. to sum up several molecules
+   *
+   * @param histogram counts indexed by atomic number, must be larger than the largest atomic number
+   */
+  public void addElementCounts(int[] histogram) {
+    for (int a : atno) {
+      histogram[a]++;
+    }
+  }
+
+  /**
+   * @param bond bond index
+   * @return index of the first atom of the bond
+   */
+  public int getBondAtom1(int bond) {
+    return bondAtom1[bond];
+  }
+
+  /**
+   * @param bond bond index
+   * @return index of the second atom of the bond
+   */
+  public int getBondAtom2(int bond) {
+    return bondAtom2[bond];
+  }
+
+  /**
+   * @param bond bond index
+   * @return bond order as given by {@link MolBond#getType()}, e.g. 4 for aromatic
+   */
+  public int getBondOrder(int bond) {
+    return bondOrder[bond];
+  }
+
+  /**
+   * @param atom atom index
+   * @return number of neighbors
+   */
+  public int getDegree(int atom) {
+    return adjacencyStart[atom + 1] - adjacencyStart[atom];
+  }
+
+  /**
+   * @param atom atom index
+   * @param k neighbor position, less than {@link #getDegree(int)}
+   * @return index of the k-th neighbor
+   */
+  public int getNeighbor(int atom, int k) {
+    return adjacentAtoms[adjacencyStart[atom] + k];
+  }
+
+  /**
+   * @param atom atom index
+   * @param k neighbor position, less than {@link #getDegree(int)}
+   * @return index of the bond to the k-th neighbor
+   */
+  public int getNeighborBond(int atom, int k) {
+    return adjacentBonds[adjacencyStart[atom] + k];
+  }
+
+  /**
+   * @param atom1 atom index
+   * @param atom2 atom index
+   * @return index of the bond between the atoms, -1 if they are not bonded
+   */
+  public int findBond(int atom1, int atom2) {
+    for (int p = adjacencyStart[atom1]; p < adjacencyStart[atom1 + 1]; p++) {
+      if (adjacentAtoms[p] == atom2) {
+        return adjacentBonds[p];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if all atoms form one fragment
+   */
+  public boolean isConnected() {
+    int atomCount = atno.length;
+    if (atomCount == 0) {
+      return true;
+    }
+    // the visited atoms are kept in order of discovery, the ones not yet expanded form the queue
+    int[] queue = new int[atomCount];
+    boolean[] seen = new boolean[atomCount];
+    queue[0] = 0;
+    seen[0] = true;
+    int head = 0;
+    int tail = 1;
+    while (head < tail) {
+      int atom = queue[head++];
+      for (int p = adjacencyStart[atom]; p < adjacencyStart[atom + 1]; p++) {
+        int next = adjacentAtoms[p];
+        if (!seen[next]) {
+          seen[next] = true;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return tail == atomCount;
+  }
+
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@code OperationStatistics} counts the calls, failures, calls in flight and latencies of the public operations of
+ * {@link ChemaxonManipulator}. The latencies are kept in the power-of-two buckets of {@link HistogramMetricsSink}. All
+ * counters are lock-free.
+ *
+ * @author chistyakov
+ */
+public class OperationStatistics {
+
+  /**
+   * operations tracked by the manipulator
+   */
+  public enum Operation {
+    CONVERT, CANONICALIZE, VALIDATE_SMILES, RENDER_MOL, MERGE, GET_MOLECULE_INFO, CONVERT_REQUEST, WRITE_MOLFILE
+  }
+
+  private static final int SIZE = Operation.values().length;
+
+  private final AtomicLongArray errors = new AtomicLongArray(SIZE);
+
+  private final AtomicLongArray inFlight = new AtomicLongArray(SIZE);
+
+  private final AtomicLongArray timeouts = new AtomicLongArray(SIZE);
+
+  private final HistogramMetricsSink.Histogram[] latencies = new HistogramMetricsSink.Histogram[SIZE];
+
+  public OperationStatistics() {
+    for (int i = 0; i < SIZE; i++) {
+      latencies[i] = new HistogramMetricsSink.Histogram();
+    }
+  }
+
+  /**
+   * @param operation started operation
+   * @return start time to pass to {@link #stop(Operation, long)}
+   */
+  long start(Operation operation) {
+    inFlight.incrementAndGet(operation.ordinal());
+    return System.nanoTime();
+  }
+
+  /**
+   * @param operation failed operation, {@link #stop(Operation, long)} is called as well
+   */
+  void failed(Operation operation) {
+    errors.incrementAndGet(operation.ordinal());
+  }
+
+  /**
+   * @param operation operation which exceeded its deadline, {@link #failed(Operation)} is called as well
+   */
+  void timedOut(Operation operation) {
+    timeouts.incrementAndGet(operation.ordinal());
+  }
+
+  /**
+   * @param operation finished operation
+   * @param start value returned by {@link #start(Operation)}
+   * @return duration of the call in nanoseconds
+   */
+  long stop(Operation operation, long start) {
+    long nanos = System.nanoTime() - start;
+    int i = operation.ordinal();
+    inFlight.decrementAndGet(i);
+    latencies[i].record(nanos);
+    return nanos;
+  }
+
+  /**
+   * @param operation operation
+   * @return number of finished calls, including failed ones
+   */
+  public long getCount(Operation operation) {
+    return latencies[operation.ordinal()].count();
+  }
+
+  /**
+   * @param operation operation
+   * @return number of calls which ended with an exception
+   */
+  public long getErrors(Operation operation) {
+    return errors.get(operation.ordinal());
+  }
+
+  /**
+   * @param operation operation
+   * @return number of calls which exceeded their deadline
+   */
+  public long getTimeouts(Operation operation) {
+    return timeouts.get(operation.ordinal());
+  }
+
+  /**
+   * @param operation operation
+   * @return number of calls currently running
+   */
+  public long getInFlight(Operation operation) {
+    return inFlight.get(operation.ordinal());
+  }
+
+  /**
+   * @param operation operation
+   * @return sum of the durations of all finished calls in nanoseconds
+   */
+  public long getTotalNanos(Operation operation) {
+    return latencies[operation.ordinal()].total();
+  }
+
+  /**
+   * @param operation operation
+   * @return longest finished call in nanoseconds
+   */
+  public long getMaxNanos(Operation operation) {
+    return latencies[operation.ordinal()].max();
+  }
+
+  /**
+   * @param operation operation
+   * @param percentile percentile between 0 and 100
+   * @return upper bound in nanoseconds of the bucket holding the percentile of the finished calls, 0 if there were
+   *         none
+   */
+  public long getPercentileNanos(Operation operation, double percentile) {
+    return latencies[operation.ordinal()].percentile(percentile);
+  }
+
+  /**
+   * clears counts, errors and latencies, calls in flight are kept
+   */
+  public void reset() {
+    for (int i = 0; i < SIZE; i++) {
+      errors.set(i, 0);
+      timeouts.set(i, 0);
+      latencies[i].clear();
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code PathFingerprint} hashed path fingerprint of {@link #BITS} bits, packed into {@link #WORDS} longs. Every
+ * linear path of up to {@link #MAX_PATH} atoms sets one bit chosen by a hash of its atomic numbers and bond orders,
+ * in both directions, so the result does not depend on the atom order. R-group atoms take part like any other atom.
+ * A molecule is aromatized before, so its aromatic and Kekule forms give the same fingerprint.
+ *
+ * @author chistyakov
+ */
+public final class PathFingerprint {
+
+  /** number of bits */
+  public static final int BITS = 1024;
+
+  /** number of longs of a fingerprint */
+  public static final int WORDS = BITS / 64;
+
+  /** maximum number of atoms of a path */
+  public static final int MAX_PATH = 7;
+
+  private PathFingerprint() {
+  }
+
+  /**
+   * @param molecule molecule, not modified
+   * @return fingerprint of the current graph, aromatized on a copy
+   */
+  public static long[] generate(ChemMolecule molecule) {
+    Molecule aromatic = molecule.peekMolecule().cloneMolecule();
+    aromatic.aromatize();
+    return generate(MoleculeSnapshot.of(aromatic));
+  }
+
+  /**
+   * @param snapshot molecule graph, its bond orders are taken as they are
+   * @return fingerprint
+   */
+  public static long[] generate(MoleculeSnapshot snapshot) {
+    long[] fingerprint = new long[WORDS];
+    int atomCount = snapshot.getAtomCount();
+    boolean[] onPath = new boolean[atomCount];
+    // depth-first search with an explicit stack of atoms, neighbor positions and path hashes
+    int[] atoms = new int[MAX_PATH];
+    int[] next = new int[MAX_PATH];
+    long[] hashes = new long[MAX_PATH];
+    for (int start = 0; start < atomCount; start++) {
+      atoms[0] = start;
+      next[0] = 0;
+      hashes[0] = snapshot.getAtno(start);
+      onPath[start] = true;
+      set(fingerprint, hashes[0]);
+      int depth = 0;
+      while (depth >= 0) {
+        int atom = atoms[depth];
+        if (depth + 1 < MAX_PATH && next[depth] < snapshot.getDegree(atom)) {
+          int k = next[depth]++;
+          int neighbor = snapshot.getNeighbor(atom, k);
+          if (onPath[neighbor]) {
+            continue;
+          }
+          depth++;
+          atoms[depth] = neighbor;
+          next[depth] = 0;
+          hashes[depth] = hashes[depth - 1] * 1000003
+              + (snapshot.getBondOrder(snapshot.getNeighborBond(atom, k)) << 8 | snapshot.getAtno(neighbor));
+          onPath[neighbor] = true;
+          set(fingerprint, hashes[depth]);
+        } else {
+          onPath[atom] = false;
+          depth--;
+        }
+      }
+    }
+    return fingerprint;
+  }
+
+  /**
+   * @param a fingerprint
+   * @param b fingerprint
+   * @return Tanimoto coefficient, 1 if both are empty
+   */
+  public static double tanimoto(long[] a, long[] b) {
+    int common = 0;
+    int all = 0;
+    for (int i = 0; i < a.length; i++) {
+      common += Long.bitCount(a[i] & b[i]);
+      all += Long.bitCount(a[i] | b[i]);
+    }
+    return all == 0 ? 1 : (double) common / all;
+  }
+
+  private static void set(long[] fingerprint, long hash) {
+    // finalizer of MurmurHash3
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    int bit = (int) hash & (BITS - 1);
+    fingerprint[bit >>> 6] |= 1L << bit;
+  }
+
+}
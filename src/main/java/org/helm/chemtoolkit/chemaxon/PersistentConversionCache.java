@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helm.chemtoolkit.chemaxon.OperationStatistics.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import chemaxon.struc.Molecule;
+
+/**
+ * {@code PersistentConversionCache} keeps results of {@link ChemaxonManipulator#convert(String,
+ * org.helm.chemtoolkit.AbstractChemistryManipulator.StType)} and {@link ChemaxonManipulator#canonicalize(String)} in
+ * memory-mapped segment files, so they survive a restart. Only the index is held on the heap; it is rebuilt from the
+ * segments when the cache is opened.
+ * <p>
+ * Records are appended to the newest segment. When the number of segments exceeds the size cap, the oldest segment is
+ * compacted: the records read since they were written are moved to the newest segment, all others are dropped with the
+ * file. {@link #compact()} rewrites all segments and drops superseded records.
+ * <p>
+ * A record is keyed by the operation, its argument, the import format of the input and the input itself, tagged with
+ * the version of the record layout and of Marvin. Records of another Marvin version are never found; they are dropped
+ * when their segment is compacted.
+ * <p>
+ * A record is written completely before its length is set, so a record torn by a crash is ignored on the next open.
+ * Each directory must be used by one cache instance only. The file of a compacted segment is deleted at once, but its
+ * mapping is released only when the buffer is garbage collected, since a concurrent lookup may still read it; until
+ * then it counts against the address space, and on Windows the file can not be deleted.
+ *
+ * @author chistyakov
+ */
+public class PersistentConversionCache implements Closeable {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(PersistentConversionCache.class);
+
+  /** default size of a segment file */
+  public static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+
+  private static final String PREFIX = "segment-";
+
+  private static final String SUFFIX = ".cache";
+
+  /** length, hash and key length in front of key and value */
+  private static final int HEADER = 4 + 8 + 4;
+
+  /** version of the record layout and of Marvin, part of every key */
+  private static final String VERSION = "1/" + Molecule.class.getPackage().getImplementationVersion();
+
+  private final Path directory;
+
+  private final int segmentBytes;
+
+  private final int maxSegments;
+
+  private final ConcurrentMap<Long, Location> index = new ConcurrentHashMap<>();
+
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /** segment receiving new records, guarded by this */
+  private Segment active;
+
+  /**
+   * opens the cache with segments of {@link #DEFAULT_SEGMENT_BYTES}
+   *
+   * @param directory directory of the segment files, created if missing
+   * @param maxBytes size cap of all segments together
+   * @throws IOException if the segments can not be mapped
+   */
+  public PersistentConversionCache(Path directory, long maxBytes) throws IOException {
+    this(directory, maxBytes, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /**
+   * @param directory directory of the segment files, created if missing
+   * @param maxBytes size cap of all segments together, at least two segments are kept
+   * @param segmentBytes size of a new segment file
+   * @throws IOException if the segments can not be mapped
+   */
+  public PersistentConversionCache(Path directory, long maxBytes, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        try {
+          long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+          segments.put(sequence, Segment.map(file, sequence, segmentBytes));
+        } catch (NumberFormatException e) {
+          LOG.warn("ignoring unknown file " + file);
+        }
+      }
+    }
+    for (Segment segment : segments.values()) {
+      scan(segment);
+    }
+    active = segments.isEmpty() ? addSegment(0) : segments.lastEntry().getValue();
+    LOG.debug("opened conversion cache " + directory + " with " + index.size() + " entries");
+  }
+
+  /**
+   * @param operation operation
+   * @param argument operation specific argument, e.g. the input type
+   * @param format Marvin format the input is read with, null if it is detected from the content
+   * @param input input of the operation
+   * @return cached result or null
+   */
+  public String get(Operation operation, String argument, String format, String input) {
+    byte[] key = key(operation, argument, format, input);
+    long hash = hash(key);
+    Location location = index.get(hash);
+    if (location != null) {
+      ByteBuffer buffer = location.segment.buffer.duplicate();
+      int offset = location.offset;
+      int length = buffer.getInt(offset);
+      int keyLength = buffer.getInt(offset + 12);
+      if (keyLength == key.length && matches(buffer, offset + HEADER, key)) {
+        byte[] value = new byte[length + 4 - HEADER - keyLength];
+        buffer.position(offset + HEADER + keyLength);
+        buffer.get(value);
+        location.used = true;
+        hits.incrementAndGet();
+        return new String(value, StandardCharsets.UTF_8);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * stores a result, results larger than a segment are not stored
+   *
+   * @param operation operation
+   * @param argument operation specific argument, e.g. the input type
+   * @param format Marvin format the input is read with, null if it is detected from the content
+   * @param input input of the operation
+   * @param value result of the operation
+   * @throws IOException if a new segment can not be created
+   */
+  public synchronized void put(Operation operation, String argument, String format, String input, String value)
+      throws IOException {
+    byte[] key = key(operation, argument, format, input);
+    append(hash(key), key, value.getBytes(StandardCharsets.UTF_8), false);
+  }
+
+  /**
+   * rewrites all records still in the index into new segments and deletes the old segment files
+   *
+   * @throws IOException if a new segment can not be created
+   */
+  public synchronized void compact() throws IOException {
+    List<Segment> old = new ArrayList<>(segments.values());
+    active = addSegment(active.sequence + 1);
+    for (Segment segment : old) {
+      relocate(segment, false);
+    }
+  }
+
+  /**
+   * @return number of cached results
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * @return number of lookups answered from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups not found in the cache
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * writes all segments to disk
+   */
+  @Override
+  public synchronized void close() {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+  }
+
+  private void append(long hash, byte[] key, byte[] value, boolean used) throws IOException {
+    int length = HEADER - 4 + key.length + value.length;
+    if (length + 4 > segmentBytes) {
+      return;
+    }
+    if (active.position + 4 + length > active.buffer.capacity()) {
+      active = addSegment(active.sequence + 1);
+      if (segments.size() > maxSegments) {
+        relocate(segments.firstEntry().getValue(), true);
+      }
+    }
+    int offset = active.position;
+    ByteBuffer buffer = active.buffer.duplicate();
+    buffer.position(offset + 4);
+    buffer.putLong(hash);
+    buffer.putInt(key.length);
+    buffer.put(key);
+    buffer.put(value);
+    // the length is set last, it marks the record as complete
+    buffer.putInt(offset, length);
+    active.position = offset + 4 + length;
+    Location location = new Location(active, offset);
+    location.used = used;
+    index.put(hash, location);
+  }
+
+  /**
+   * moves the records of the segment which are still in the index to the active segment and deletes the segment
+   *
+   * @param usedOnly true to move only the records read since they were written, the others are dropped
+   */
+  private void relocate(Segment segment, boolean usedOnly) throws IOException {
+    segments.remove(segment.sequence);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    List<Record> moved = new ArrayList<>();
+    int offset = 0;
+    while (offset < segment.position) {
+      int length = buffer.getInt(offset);
+      long hash = buffer.getLong(offset + 4);
+      Location location = index.get(hash);
+      if (location != null && location.segment == segment && location.offset == offset) {
+        if (!usedOnly || location.used) {
+          int keyLength = buffer.getInt(offset + 12);
+          byte[] key = new byte[keyLength];
+          byte[] value = new byte[length + 4 - HEADER - keyLength];
+          buffer.position(offset + HEADER);
+          buffer.get(key);
+          buffer.get(value);
+          // a record moved by the size cap has to be read again to survive the next compaction
+          moved.add(new Record(hash, key, value, !usedOnly && location.used));
+        } else {
+          index.remove(hash, location);
+        }
+      }
+      offset += 4 + length;
+    }
+    for (Record record : moved) {
+      append(record.hash, record.key, record.value, record.used);
+    }
+    // the mapping stays until the buffer is collected, a lookup may still be reading it
+    try {
+      Files.deleteIfExists(segment.file);
+    } catch (IOException e) {
+      LOG.warn("unable to delete segment " + segment.file, e);
+    }
+    LOG.debug("compacted segment " + segment.file + ", " + moved.size() + " records moved");
+  }
+
+  private Segment addSegment(long sequence) throws IOException {
+    Path file = directory.resolve(PREFIX + String.format("%012d", sequence) + SUFFIX);
+    Segment segment = Segment.map(file, sequence, segmentBytes);
+    segments.put(sequence, segment);
+    return segment;
+  }
+
+  private void scan(Segment segment) {
+    ByteBuffer buffer = segment.buffer;
+    int offset = 0;
+    while (offset + HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      if (length < HEADER - 4 || offset + 4 + length > buffer.capacity()) {
+        break;
+      }
+      index.put(buffer.getLong(offset + 4), new Location(segment, offset));
+      offset += 4 + length;
+    }
+    segment.position = offset;
+  }
+
+  private static boolean matches(ByteBuffer buffer, int offset, byte[] key) {
+    for (int i = 0; i < key.length; i++) {
+      if (buffer.get(offset + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] key(Operation operation, String argument, String format, String input) {
+    return (VERSION + '\0' + operation.name() + '\0' + argument + '\0' + (format == null ? "" : format) + '\0'
+        + input).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * 64 bit FNV-1a
+   */
+  private static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * {@code Segment} a mapped segment file
+   */
+  private static final class Segment {
+
+    private final Path file;
+
+    private final long sequence;
+
+    private final MappedByteBuffer buffer;
+
+    /** end of the last complete record, written under the lock of the cache */
+    private volatile int position;
+
+    private Segment(Path file, long sequence, MappedByteBuffer buffer) {
+      this.file = file;
+      this.sequence = sequence;
+      this.buffer = buffer;
+    }
+
+    private static Segment map(Path file, long sequence, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        long existing = channel.size();
+        int mapped = existing > 0 ? (int) Math.min(existing, Integer.MAX_VALUE) : size;
+        return new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, mapped));
+      }
+    }
+  }
+
+  /**
+   * {@code Record} a record copied out of a segment
+   */
+  private static final class Record {
+
+    private final long hash;
+
+    private final byte[] key;
+
+    private final byte[] value;
+
+    private final boolean used;
+
+    private Record(long hash, byte[] key, byte[] value, boolean used) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+      this.used = used;
+    }
+  }
+
+  /**
+   * {@code Location} position of a record
+   */
+  private static final class Location {
+
+    private final Segment segment;
+
+    private final int offset;
+
+    /** set when the record is read, a record not read since it was written is dropped on compaction */
+    private volatile boolean used;
+
+    private Location(Segment segment, int offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+
+}
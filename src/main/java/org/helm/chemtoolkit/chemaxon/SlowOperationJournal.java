@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.chemaxon.OperationStatistics.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code SlowOperationJournal} appends every call of a {@link ChemaxonManipulator} slower than a threshold to a local
+ * file, one line per call: time in milliseconds, operation, duration in nanoseconds, argument and input, separated by
+ * tabs. Tabs, line breaks and backslashes within argument and input are escaped. The journal is read back by
+ * {@link SlowOperationReplay}.
+ * <p>
+ * Writing errors are logged and otherwise ignored, the journal never makes a call fail.
+ *
+ * @author chistyakov
+ */
+public class SlowOperationJournal {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(SlowOperationJournal.class);
+
+  private final Path file;
+
+  private final long thresholdNanos;
+
+  /**
+   * @param file journal file, created if missing and appended to otherwise
+   * @param threshold calls taking at least this long are journaled
+   * @param unit unit of the threshold
+   */
+  public SlowOperationJournal(Path file, long threshold, TimeUnit unit) {
+    this.file = file;
+    this.thresholdNanos = unit.toNanos(threshold);
+  }
+
+  /**
+   * @return journal file
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * @return threshold in nanoseconds
+   */
+  public long getThresholdNanos() {
+    return thresholdNanos;
+  }
+
+  /**
+   * appends the call if it reached the threshold
+   *
+   * @param operation operation
+   * @param argument operation specific argument, e.g. the input type
+   * @param input input of the call
+   * @param nanos duration of the call
+   */
+  void record(Operation operation, String argument, String input, long nanos) {
+    if (nanos < thresholdNanos) {
+      return;
+    }
+    String line = System.currentTimeMillis() + "\t" + operation.name() + "\t" + nanos + "\t" + escape(argument)
+        + "\t" + escape(input);
+    synchronized (this) {
+      try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND)) {
+        writer.write(line);
+        writer.newLine();
+      } catch (IOException e) {
+        LOG.warn("unable to write slow operation journal " + file, e);
+      }
+    }
+  }
+
+  /**
+   * reads all entries of a journal file
+   *
+   * @param file journal file
+   * @return entries in order of the file
+   * @throws CTKException if the file can not be read or contains an invalid line
+   */
+  public static List<Entry> read(Path file) throws CTKException {
+    List<Entry> entries = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 5) {
+          throw new CTKException("invalid journal line: " + line);
+        }
+        try {
+          entries.add(new Entry(Long.parseLong(fields[0]), Operation.valueOf(fields[1]), Long.parseLong(fields[2]),
+              unescape(fields[3]), unescape(fields[4])));
+        } catch (IllegalArgumentException e) {
+          throw new CTKException("invalid journal line: " + line, e);
+        }
+      }
+    } catch (IOException e) {
+      throw new CTKException("unable to read journal " + file, e);
+    }
+    return entries;
+  }
+
+  private static String escape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      default:
+        sb.append(c);
+        break;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String unescape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c != '\\' || i + 1 == value.length()) {
+        sb.append(c);
+        continue;
+      }
+      char next = value.charAt(++i);
+      switch (next) {
+      case 't':
+        sb.append('\t');
+        break;
+      case 'n':
+        sb.append('\n');
+        break;
+      case 'r':
+        sb.append('\r');
+        break;
+      default:
+        sb.append(next);
+        break;
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * {@code Entry} a single journaled call
+   */
+  public static final class Entry {
+
+    private final long time;
+
+    private final Operation operation;
+
+    private final long nanos;
+
+    private final String argument;
+
+    private final String input;
+
+    private Entry(long time, Operation operation, long nanos, String argument, String input) {
+      this.time = time;
+      this.operation = operation;
+      this.nanos = nanos;
+      this.argument = argument;
+      this.input = input;
+    }
+
+    /**
+     * @return time of the call in milliseconds since the epoch
+     */
+    public long getTime() {
+      return time;
+    }
+
+    /**
+     * @return operation
+     */
+    public Operation getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return duration of the original call in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return operation specific argument: the input type for CONVERT, output type, width, height and color separated
+     *         by commas for RENDER_MOL, empty otherwise
+     */
+    public String getArgument() {
+      return argument;
+    }
+
+    /**
+     * @return input of the call
+     */
+    public String getInput() {
+      return input;
+    }
+  }
+
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
+import org.helm.chemtoolkit.CTKException;
+import org.helm.chemtoolkit.chemaxon.OperationStatistics.Operation;
+import org.helm.chemtoolkit.chemaxon.SlowOperationJournal.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code SlowOperationReplay} runs the calls of a {@link SlowOperationJournal} again against a
+ * {@link ChemaxonManipulator} and reports the latency percentiles per operation, so slow inputs can be reproduced
+ * offline. From the command line:
+ *
+ * <pre>
+ * java org.helm.chemtoolkit.chemaxon.SlowOperationReplay journal [concurrency] [repetitions]
+ * </pre>
+ *
+ * @author chistyakov
+ */
+public class SlowOperationReplay {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(SlowOperationReplay.class);
+
+  private final ChemaxonManipulator manipulator;
+
+  /**
+   * @param manipulator manipulator running the calls
+   */
+  public SlowOperationReplay(ChemaxonManipulator manipulator) {
+    this.manipulator = manipulator;
+  }
+
+  /**
+   * runs every entry the given number of times, a failing call is counted and does not stop the replay
+   *
+   * @param entries journaled calls
+   * @param concurrency number of threads
+   * @param repetitions number of runs per entry
+   * @return latencies per operation
+   * @throws CTKException if the replay was interrupted
+   */
+  public Report replay(List<Entry> entries, int concurrency, int repetitions) throws CTKException {
+    if (concurrency < 1 || repetitions < 1) {
+      throw new CTKException("concurrency and repetitions must be positive");
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    List<Future<Sample>> futures = new ArrayList<>(entries.size() * repetitions);
+    try {
+      for (int i = 0; i < repetitions; i++) {
+        for (final Entry entry : entries) {
+          futures.add(executor.submit(new Callable<Sample>() {
+            @Override
+            public Sample call() {
+              return run(entry);
+            }
+          }));
+        }
+      }
+      Report report = new Report();
+      for (Future<Sample> future : futures) {
+        report.add(future.get());
+      }
+      report.sort();
+      return report;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CTKException("replay interrupted", e);
+    } catch (ExecutionException e) {
+      throw new CTKException("replay failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Sample run(Entry entry) {
+    long start = System.nanoTime();
+    boolean failed = false;
+    try {
+      switch (entry.getOperation()) {
+      case CONVERT:
+        manipulator.convert(entry.getInput(), StType.valueOf(entry.getArgument()));
+        break;
+      case CANONICALIZE:
+        manipulator.canonicalize(entry.getInput());
+        break;
+      case VALIDATE_SMILES:
+        // an invalid structure is reported as failure, as the original call did not succeed either
+        failed = !manipulator.validateSMILES(entry.getInput());
+        break;
+      case RENDER_MOL:
+        String[] argument = entry.getArgument().split(",");
+        manipulator.renderMol(entry.getInput(), OutputType.valueOf(argument[0]), Integer.parseInt(argument[1]),
+            Integer.parseInt(argument[2]), Integer.parseInt(argument[3]));
+        break;
+      default:
+        throw new CTKException("operation can not be replayed: " + entry.getOperation());
+      }
+    } catch (CTKException | RuntimeException e) {
+      LOG.debug("replayed " + entry.getOperation() + " failed", e);
+      failed = true;
+    }
+    return new Sample(entry.getOperation(), System.nanoTime() - start, failed);
+  }
+
+  /**
+   * replays a journal file and prints the report
+   *
+   * @param args journal file, optional concurrency (default 1) and repetitions (default 1)
+   * @throws CTKException if the journal can not be read
+   */
+  public static void main(String[] args) throws CTKException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println("usage: SlowOperationReplay journal [concurrency] [repetitions]");
+      System.exit(2);
+    }
+    int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    List<Entry> entries = SlowOperationJournal.read(Paths.get(args[0]));
+    Report report = new SlowOperationReplay(new ChemaxonManipulator()).replay(entries, concurrency, repetitions);
+    System.out.println(report);
+  }
+
+  /**
+   * {@code Sample} a single replayed call
+   */
+  private static final class Sample {
+
+    private final Operation operation;
+
+    private final long nanos;
+
+    private final boolean failed;
+
+    private Sample(Operation operation, long nanos, boolean failed) {
+      this.operation = operation;
+      this.nanos = nanos;
+      this.failed = failed;
+    }
+  }
+
+  /**
+   * {@code Report} latencies of the replayed calls per operation
+   */
+  public static final class Report {
+
+    private final long[][] nanos = new long[Operation.values().length][];
+
+    private final int[] counts = new int[Operation.values().length];
+
+    private final int[] errors = new int[Operation.values().length];
+
+    private Report() {
+      for (int i = 0; i < nanos.length; i++) {
+        nanos[i] = new long[16];
+      }
+    }
+
+    private void add(Sample sample) {
+      int i = sample.operation.ordinal();
+      if (counts[i] == nanos[i].length) {
+        nanos[i] = Arrays.copyOf(nanos[i], counts[i] * 2);
+      }
+      nanos[i][counts[i]++] = sample.nanos;
+      if (sample.failed) {
+        errors[i]++;
+      }
+    }
+
+    private void sort() {
+      for (int i = 0; i < nanos.length; i++) {
+        Arrays.sort(nanos[i], 0, counts[i]);
+      }
+    }
+
+    /**
+     * @param operation operation
+     * @return number of replayed calls
+     */
+    public int getCount(Operation operation) {
+      return counts[operation.ordinal()];
+    }
+
+    /**
+     * @param operation operation
+     * @return number of replayed calls which failed
+     */
+    public int getErrors(Operation operation) {
+      return errors[operation.ordinal()];
+    }
+
+    /**
+     * @param operation operation
+     * @param percentile percentile between 0 and 100
+     * @return duration in nanoseconds below or at which the given percentage of calls finished, 0 if there were no
+     *         calls
+     */
+    public long getPercentileNanos(Operation operation, double percentile) {
+      int i = operation.ordinal();
+      if (counts[i] == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100 * counts[i]);
+      return nanos[i][Math.min(counts[i], Math.max(rank, 1)) - 1];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (Operation operation : Operation.values()) {
+        int count = getCount(operation);
+        if (count == 0) {
+          continue;
+        }
+        sb.append(operation).append(": count=").append(count).append(" errors=").append(getErrors(operation));
+        for (double percentile : new double[] {50, 90, 99, 100}) {
+          sb.append(" p").append((int) percentile).append('=')
+              .append(getPercentileNanos(operation, percentile) / 1000).append("us");
+        }
+        sb.append('\n');
+      }
+      return sb.toString();
+    }
+  }
+
+}
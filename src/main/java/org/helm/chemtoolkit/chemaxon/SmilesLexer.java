@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+/**
+ * {@code SmilesLexer} single pass syntax check of (extended) SMILES, run before the input is handed to Marvin. It
+ * rejects what can not be a SMILES at all: unknown characters, unbalanced brackets or parentheses, empty branches,
+ * ring bonds which are not closed, and an unterminated CXSMILES block or label list. Anything it accepts may still be
+ * rejected by Marvin; it never allocates.
+ *
+ * @author chistyakov
+ */
+final class SmilesLexer {
+
+  private SmilesLexer() {
+  }
+
+  /**
+   * @param smiles input
+   * @return true if the input passes the syntax check
+   */
+  static boolean isPlausible(CharSequence smiles) {
+    return check(smiles) < 0;
+  }
+
+  /**
+   * @param smiles input
+   * @return position of the first syntax error, the length of the input for an error at its end, -1 if there is none
+   */
+  static int check(CharSequence smiles) {
+    if (smiles == null) {
+      return 0;
+    }
+    int length = smiles.length();
+    int i = 0;
+    while (i < length && Character.isWhitespace(smiles.charAt(i))) {
+      i++;
+    }
+    if (i == length) {
+      return length;
+    }
+    // open ring bonds 0..99 as bits
+    long rings0 = 0;
+    long rings1 = 0;
+    int depth = 0;
+    boolean atom = false;
+    for (; i < length; i++) {
+      char c = smiles.charAt(i);
+      // the SMILES ends at any whitespace, like the leading whitespace skipped above
+      if (Character.isWhitespace(c)) {
+        break;
+      }
+      if (c == '[') {
+        int end = bracketEnd(smiles, i);
+        if (end < 0) {
+          return i;
+        }
+        i = end;
+        atom = true;
+      } else if (c == '(') {
+        if (!atom || i + 1 == length || smiles.charAt(i + 1) == ')') {
+          return i;
+        }
+        depth++;
+      } else if (c == ')') {
+        if (depth == 0) {
+          return i;
+        }
+        depth--;
+      } else if (c >= '0' && c <= '9' || c == '%') {
+        int ring;
+        if (c == '%') {
+          if (i + 2 >= length || !isDigit(smiles.charAt(i + 1)) || !isDigit(smiles.charAt(i + 2))) {
+            return i;
+          }
+          ring = (smiles.charAt(i + 1) - '0') * 10 + smiles.charAt(i + 2) - '0';
+          i += 2;
+        } else {
+          ring = c - '0';
+        }
+        if (!atom) {
+          return i;
+        }
+        if (ring < 64) {
+          rings0 ^= 1L << ring;
+        } else {
+          rings1 ^= 1L << (ring - 64);
+        }
+      } else if (c == '.') {
+        atom = false;
+      } else if (isOrganicAtom(c)) {
+        if (i + 1 < length && (c == 'C' && smiles.charAt(i + 1) == 'l' || c == 'B' && smiles.charAt(i + 1) == 'r')) {
+          i++;
+        }
+        atom = true;
+      } else if ("-=#$:/\\>~".indexOf(c) < 0) {
+        return i;
+      }
+    }
+    if (depth != 0 || rings0 != 0 || rings1 != 0) {
+      return i;
+    }
+    return checkExtension(smiles, i);
+  }
+
+  /**
+   * @return position of the closing bracket, -1 if the atom is not closed or contains invalid characters
+   */
+  private static int bracketEnd(CharSequence smiles, int start) {
+    for (int i = start + 1; i < smiles.length(); i++) {
+      char c = smiles.charAt(i);
+      if (c == ']') {
+        return i == start + 1 ? -1 : i;
+      }
+      if (!(isLetter(c) || isDigit(c) || "@+-:*#".indexOf(c) >= 0)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * checks the CXSMILES block after the SMILES, e.g. |$_R1;;_R2$|, and that the label lists in it are closed
+   */
+  private static int checkExtension(CharSequence smiles, int start) {
+    int length = smiles.length();
+    int i = start;
+    while (i < length && Character.isWhitespace(smiles.charAt(i))) {
+      i++;
+    }
+    if (i == length || smiles.charAt(i) != '|') {
+      // a name may follow the SMILES
+      return -1;
+    }
+    boolean label = false;
+    for (int j = i + 1; j < length; j++) {
+      char c = smiles.charAt(j);
+      if (c == '$') {
+        label = !label;
+      } else if (c == '|' && !label) {
+        return -1;
+      }
+    }
+    return length;
+  }
+
+  private static boolean isOrganicAtom(char c) {
+    switch (c) {
+    case 'B':
+    case 'C':
+    case 'N':
+    case 'O':
+    case 'P':
+    case 'S':
+    case 'F':
+    case 'I':
+    case 'b':
+    case 'c':
+    case 'n':
+    case 'o':
+    case 'p':
+    case 's':
+    case '*':
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+  }
+
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.helm.chemtoolkit.CTKException;
+
+/**
+ * {@code Tasks} runs a batch of tasks on an executor and waits for all of them. The first failure is rethrown and the
+ * remaining tasks are cancelled.
+ *
+ * @author chistyakov
+ */
+final class Tasks {
+
+  private Tasks() {
+  }
+
+  /**
+   * @param executor executor for the tasks
+   * @param tasks tasks to run
+   * @param operation name of the operation used in error messages, e.g. "chain assembly"
+   * @return results in the order of the tasks
+   * @throws CTKException the exception of the first failed task, or if waiting was interrupted
+   */
+  static <T> List<T> invokeAll(ExecutorService executor, List<? extends Callable<T>> tasks, String operation)
+      throws CTKException {
+    List<Future<T>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (Callable<T> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      List<T> results = new ArrayList<>(futures.size());
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CTKException(operation + " interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CTKException) {
+        throw (CTKException) e.getCause();
+      }
+      throw new CTKException(operation + " failed", e.getCause());
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+}
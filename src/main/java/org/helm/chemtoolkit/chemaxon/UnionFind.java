@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+/**
+ * {@code UnionFind} disjoint sets of the indexes 0..size-1, used to track which fragments of an assembly are merged
+ * already. The root of a set is the fragment holding the merged molecule.
+ *
+ * @author chistyakov
+ */
+final class UnionFind {
+
+  private final int[] parent;
+
+  /**
+   * @param size number of elements, each in its own set
+   */
+  UnionFind(int size) {
+    parent = new int[size];
+    for (int i = 0; i < size; i++) {
+      parent[i] = i;
+    }
+  }
+
+  /**
+   * @param i element
+   * @return root of the set of the element
+   */
+  int find(int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /**
+   * joins the set of the second element into the set of the first one, whose root stays the root
+   *
+   * @param target element whose root becomes the root of both sets
+   * @param other element whose set is joined
+   */
+  void join(int target, int other) {
+    parent[find(other)] = find(target);
+  }
+
+  /**
+   * @return true if all elements are in one set
+   */
+  boolean isConnected() {
+    for (int i = 1; i < parent.length; i++) {
+      if (find(i) != find(0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
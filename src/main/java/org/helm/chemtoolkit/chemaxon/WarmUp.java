@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright C 2015, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+package org.helm.chemtoolkit.chemaxon;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
+import org.helm.chemtoolkit.AbstractMolecule;
+import org.helm.chemtoolkit.CTKException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code WarmUp} runs every operation of a {@link ChemaxonManipulator} on a built-in set of monomers, round after
+ * round, until a round is no longer notably faster than the one before. This loads the Marvin classes and format
+ * modules, initializes the analyser and the painter and lets the JIT compile the hot paths before the first real call.
+ *
+ * @author chistyakov
+ */
+public class WarmUp {
+
+  /** The Logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+  /** default maximum number of rounds */
+  public static final int DEFAULT_MAX_ROUNDS = 20;
+
+  /** default relative speed-up below which a round counts as settled */
+  public static final double DEFAULT_TOLERANCE = 0.1;
+
+  /** amino acids, a nucleobase and a ribose with R-groups, as used in monomer libraries */
+  private static final String[] MONOMERS = {"[*]NCC([*])=O |$_R1;;;;_R2;$|",
+      "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|", "[*]N1CC[C@H]1C([*])=O |r,$_R1;;;;;;_R2;$|",
+      "[*]N[C@@H](CC([*])=O)C([*])=O |$_R1;;;;;_R3;;;_R2;$|", "[*]n1cnc2c1ncnc2N |r,$_R1;;;;;;;;;;;;$|",
+      "[*]OC[C@H]1O[C@@H]([*])[C@H](O)[C@@H]1O[*] |$_R1;;;;;;_R3;;;;;_R2$|"};
+
+  /** number of consecutive settled rounds which end the warm-up */
+  private static final int SETTLED_ROUNDS = 2;
+
+  private WarmUp() {
+  }
+
+  /**
+   * warms up with the default number of rounds and tolerance
+   *
+   * @param manipulator manipulator to warm up
+   * @return duration of the warm-up
+   * @throws CTKException if an operation failed
+   */
+  public static Result run(ChemaxonManipulator manipulator) throws CTKException {
+    return run(manipulator, DEFAULT_MAX_ROUNDS, DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * warms up until two consecutive rounds are less than the tolerance faster than their predecessor, or the maximum
+   * number of rounds is reached
+   *
+   * @param manipulator manipulator to warm up
+   * @param maxRounds maximum number of rounds
+   * @param tolerance relative speed-up, e.g. 0.1 for 10%
+   * @return duration of the warm-up
+   * @throws CTKException if an operation failed
+   */
+  public static Result run(ChemaxonManipulator manipulator, int maxRounds, double tolerance) throws CTKException {
+    List<Long> rounds = new ArrayList<>();
+    long start = System.nanoTime();
+    long previous = Long.MAX_VALUE;
+    int settled = 0;
+    while (rounds.size() < maxRounds && settled < SETTLED_ROUNDS) {
+      long roundStart = System.nanoTime();
+      runRound(manipulator);
+      long nanos = System.nanoTime() - roundStart;
+      rounds.add(nanos);
+      settled = nanos > previous * (1 - tolerance) ? settled + 1 : 0;
+      previous = nanos;
+    }
+    Result result = new Result(System.nanoTime() - start, rounds, settled >= SETTLED_ROUNDS);
+    LOG.info("warm-up " + result);
+    return result;
+  }
+
+  private static void runRound(ChemaxonManipulator manipulator) throws CTKException {
+    try {
+      for (String smiles : MONOMERS) {
+        manipulator.validateSMILES(smiles);
+        manipulator.canonicalize(smiles);
+        String molFile = manipulator.convert(smiles, StType.SMILES);
+        manipulator.convert(molFile, StType.MOLFILE);
+        manipulator.convert(new ConversionRequest(molFile, StType.MOLFILE, ConversionRequest.Output.SMILES,
+            ConversionRequest.Output.CANONICAL_SMILES, ConversionRequest.Output.MOLECULE_INFO));
+        manipulator.renderMol(molFile, OutputType.PNG, 200, 200, 0xffffff);
+
+        AbstractMolecule molecule = manipulator.getMolecule(smiles, null);
+        manipulator.getMoleculeInfo(molecule);
+        AbstractMolecule second = molecule.cloneMolecule();
+        AbstractMolecule merged =
+            manipulator.merge(molecule, molecule.getRGroupAtom(1, true), second, second.getRGroupAtom(1, true));
+        manipulator.convertMolecule(merged, StType.MOLFILE);
+        manipulator.convertMolecule(merged, StType.SMILES);
+      }
+    } catch (IOException e) {
+      throw new CTKException("warm-up failed", e);
+    }
+  }
+
+  /**
+   * {@code Result} duration of a warm-up
+   */
+  public static final class Result {
+
+    private final long nanos;
+
+    private final List<Long> rounds;
+
+    private final boolean settled;
+
+    private Result(long nanos, List<Long> rounds, boolean settled) {
+      this.nanos = nanos;
+      this.rounds = Collections.unmodifiableList(rounds);
+      this.settled = settled;
+    }
+
+    /**
+     * @return total duration in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return duration of every round in nanoseconds
+     */
+    public List<Long> getRounds() {
+      return rounds;
+    }
+
+    /**
+     * @return false if the maximum number of rounds was reached before the latencies settled
+     */
+    public boolean isSettled() {
+      return settled;
+    }
+
+    @Override
+    public String toString() {
+      return (settled ? "settled" : "not settled") + " after " + rounds.size() + " rounds in " + nanos / 1000000
+          + " ms, last round " + (rounds.isEmpty() ? 0 : rounds.get(rounds.size() - 1) / 1000) + " us";
+    }
+  }
+
+}
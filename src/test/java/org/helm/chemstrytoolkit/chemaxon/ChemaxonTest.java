@@ -17,23 +17,77 @@
 package org.helm.chemstrytoolkit.chemaxon;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.ObjectName;
+
+import org.helm.chemtoolkit.AbstractChemistryManipulator.OutputType;
+import org.helm.chemtoolkit.AbstractChemistryManipulator.StType;
 import org.helm.chemtoolkit.AbstractMolecule;
 import org.helm.chemtoolkit.Attachment;
 import org.helm.chemtoolkit.AttachmentList;
 import org.helm.chemtoolkit.CTKException;
 import org.helm.chemtoolkit.CTKSmilesException;
+import org.helm.chemtoolkit.IAtomBase;
+import org.helm.chemtoolkit.IBondBase;
 import org.helm.chemtoolkit.ManipulatorFactory;
+import org.helm.chemtoolkit.MoleculeInfo;
+import org.helm.chemtoolkit.chemaxon.AdditiveMoleculeInfo;
+import org.helm.chemtoolkit.chemaxon.ChainAssembly;
+import org.helm.chemtoolkit.chemaxon.ChemMolecule;
+import org.helm.chemtoolkit.chemaxon.ChemMoleculeCodec;
+import org.helm.chemtoolkit.chemaxon.ChemaxonAsyncService;
+import org.helm.chemtoolkit.chemaxon.ChemaxonManipulator;
+import org.helm.chemtoolkit.chemaxon.ChemaxonManipulator.LayoutMode;
+import org.helm.chemtoolkit.chemaxon.ChemaxonManipulatorMonitor;
+import org.helm.chemtoolkit.chemaxon.ConversionRequest;
+import org.helm.chemtoolkit.chemaxon.ConversionResult;
+import org.helm.chemtoolkit.chemaxon.DedupIndex;
+import org.helm.chemtoolkit.chemaxon.FingerprintIndex;
+import org.helm.chemtoolkit.chemaxon.HistogramMetricsSink;
+import org.helm.chemtoolkit.chemaxon.LibraryEnumeration;
+import org.helm.chemtoolkit.chemaxon.MergePlan;
+import org.helm.chemtoolkit.chemaxon.MetricsSink;
+import org.helm.chemtoolkit.chemaxon.MolFileWriter;
+import org.helm.chemtoolkit.chemaxon.MoleculeSnapshot;
+import org.helm.chemtoolkit.chemaxon.OperationStatistics;
+import org.helm.chemtoolkit.chemaxon.PathFingerprint;
+import org.helm.chemtoolkit.chemaxon.PersistentConversionCache;
+import org.helm.chemtoolkit.chemaxon.SlowOperationJournal;
+import org.helm.chemtoolkit.chemaxon.SlowOperationReplay;
+import org.helm.chemtoolkit.chemaxon.WarmUp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.MolBond;
+import chemaxon.struc.Molecule;
+
 /**
  * @author chistyakov
  *
@@ -189,4 +243,706 @@ public class ChemaxonTest extends TestBase {
 
   }
 
-}
\ No newline at end of file
+  @Test(groups = {"MarvinTest"})
+  public void bondArrayCacheTest() throws IOException, CTKException {
+    AbstractMolecule molecule = manipulator.getMolecule("[*]NCC([*])=O |$_R1;;;;_R2;$|", null);
+    List<IBondBase> bonds = molecule.getIBondArray();
+    Assert.assertSame(molecule.getIBondArray(), bonds);
+
+    molecule.removeINode(molecule.getRGroupAtom(1, true));
+    Assert.assertNotSame(molecule.getIBondArray(), bonds);
+    Assert.assertEquals(molecule.getIBondArray().size(), bonds.size() - 1);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void kekuleStateTest() throws IOException, CTKException {
+    AbstractMolecule molecule = manipulator.getMolecule("c1ccncc1", null);
+    String kekule = manipulator.convertMolecule(molecule, StType.SMILES);
+    Assert.assertFalse(kekule.contains("c"));
+    Assert.assertEquals(manipulator.convertMolecule(molecule, StType.SMILES), kekule);
+
+    // changes made on the Marvin molecule are not seen by the container, it has to dearomatize again
+    ((Molecule) molecule.getMolecule()).aromatize();
+    Assert.assertEquals(manipulator.convertMolecule(molecule, StType.SMILES), kekule);
+    Assert.assertFalse(manipulator.convertMolecule(molecule, StType.MOLFILE).contains("  4  0"));
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void chainAssemblyTest() throws IOException, CTKException {
+    String smiles = "[*]NCC([*])=O |$_R1;;;;_R2;$|";
+
+    AbstractMolecule[] sequential = new AbstractMolecule[4];
+    AbstractMolecule[] parallel = new AbstractMolecule[4];
+    for (int i = 0; i < 4; i++) {
+      sequential[i] = manipulator.getMolecule(smiles, null);
+      parallel[i] = manipulator.getMolecule(smiles, null);
+    }
+
+    AbstractMolecule expected = sequential[0];
+    for (int i = 1; i < 4; i++) {
+      IAtomBase r2 = sequential[i - 1].getRGroupAtom(2, true);
+      expected = manipulator.merge(expected, r2, sequential[i], sequential[i].getRGroupAtom(1, true));
+    }
+
+    IAtomBase[] r1 = new IAtomBase[4];
+    IAtomBase[] r2 = new IAtomBase[4];
+    for (int i = 0; i < 4; i++) {
+      r1[i] = parallel[i].getRGroupAtom(1, true);
+      r2[i] = parallel[i].getRGroupAtom(2, true);
+    }
+    ChainAssembly assembly = new ChainAssembly(manipulator);
+    assembly.addChain(parallel[0]).append(r2[0], parallel[1], r1[1]);
+    assembly.addChain(parallel[2]).append(r2[2], parallel[3], r1[3]);
+    assembly.addConnection(r2[1], r1[2]);
+    AbstractMolecule molecule = assembly.assemble();
+
+    Assert.assertEquals(manipulator.canonicalize(manipulator.convertMolecule(molecule, StType.SMILES)),
+        manipulator.canonicalize(manipulator.convertMolecule(expected, StType.SMILES)));
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void capRgroupTest() throws IOException, CTKException {
+    super.getRibose();
+    String merged = testResult;
+
+    String ribose = "O[C@H]1[C@H]([*])O[C@H](CO[*])[C@H]1O[*] |$;;;_R3;;;;;_R1;;;_R2$|";
+    AttachmentList groupsRibose = new AttachmentList();
+    groupsRibose.add(new Attachment("R3-OH", "R3", "OH", "O[*] |$;_R3$|"));
+    groupsRibose.add(new Attachment("R1-H", "R1", "H", "[*][H] |$_R1;$|"));
+    groupsRibose.add(new Attachment("R2-H", "R2", "H", "[*][H] |$_R2;$|"));
+    AbstractMolecule molecule = manipulator.getMolecule(ribose, groupsRibose);
+
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    for (Attachment attachment : groupsRibose) {
+      IAtomBase rGroup = molecule.getRGroupAtom(AbstractMolecule.getIdFromLabel(attachment.getLabel()), true);
+      molecule = chemaxon.capRgroup(molecule, rGroup, attachment);
+    }
+
+    Assert.assertEquals(manipulator.canonicalize(manipulator.convertMolecule(molecule, StType.SMILES)),
+        manipulator.canonicalize(merged));
+    Assert.assertNotSame(chemaxon.getCapGroup("O[*] |$;_R3$|"), chemaxon.getCapGroup("O[*] |$;_R3$|"));
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void capRgroupStateTest() throws IOException, CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    AttachmentList attachments = new AttachmentList();
+    attachments.add(new Attachment("R1-D", "R1", "D", "[*][2H] |$_R1;$|"));
+    attachments.add(new Attachment("R2-OH", "R2", "OH", "O[*] |$;_R2$|"));
+    AbstractMolecule molecule = chemaxon.getMolecule("[*]NCC([*])=O |$_R1;;;;_R2;$|", attachments);
+
+    IAtomBase r1 = molecule.getRGroupAtom(1, true);
+    IAtomBase r2 = molecule.getRGroupAtom(2, true);
+    molecule = chemaxon.capRgroup(molecule, r2, attachments.get(1));
+    Assert.assertEquals(molecule.getAttachments().size(), 1);
+    Assert.assertEquals(molecule.getAttachments().get(0).getLabel(), "R1");
+
+    // the deuterium keeps its isotope, it is merged instead of replacing the R-group atom
+    molecule = chemaxon.capRgroup(molecule, r1, attachments.get(0));
+    Assert.assertTrue(chemaxon.convertMolecule(molecule, StType.SMILES).contains("[2H]"));
+    Assert.assertTrue(molecule.getAttachments().isEmpty());
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void copyOnWriteCloneTest() throws IOException, CTKException {
+    AbstractMolecule template = manipulator.getMolecule("[*]NCC([*])=O |$_R1;;;;_R2;$|", null);
+    String expected = manipulator.convertMolecule(template, StType.SMILES);
+    int atomCount = template.getIAtomArray().size();
+
+    AbstractMolecule clone = template.cloneMolecule();
+    Assert.assertEquals(clone.getIAtomArray().size(), atomCount);
+    // comparing does not copy, both wrappers still point to the shared atom
+    Assert.assertTrue(clone.getIAtomArray().get(1).compare(template.getIAtomArray().get(1)));
+    clone.removeINode(clone.getRGroupAtom(1, true));
+
+    Assert.assertEquals(clone.getIAtomArray().size(), atomCount - 1);
+    Assert.assertNotSame(clone.getMolecule(), template.getMolecule());
+    Assert.assertEquals(manipulator.convertMolecule(template, StType.SMILES), expected);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void layoutModeTest() throws IOException, CTKException {
+    String a = "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|";
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    Assert.assertEquals(chemaxon.getLayoutMode(), LayoutMode.FULL);
+    try {
+      for (LayoutMode mode : LayoutMode.values()) {
+        chemaxon.setLayoutMode(mode);
+        AbstractMolecule a1 = manipulator.getMolecule(a, null);
+        AbstractMolecule a2 = manipulator.getMolecule(a, null);
+        AbstractMolecule a3 = manipulator.getMolecule(a, null);
+        IAtomBase a1group1 = a1.getRGroupAtom(1, true);
+        IAtomBase a2group2 = a2.getRGroupAtom(2, true);
+        IAtomBase a3group2 = a3.getRGroupAtom(2, true);
+        AbstractMolecule linear = manipulator.merge(a1, a1.getRGroupAtom(2, true), a2, a2.getRGroupAtom(1, true));
+        linear = manipulator.merge(linear, a2group2, a3, a3.getRGroupAtom(1, true));
+        Molecule linearMol = MolImporter.importMol(manipulator.convertMolecule(linear, StType.MOLFILE));
+        Assert.assertEquals(linearMol.getAtomCount(), 17);
+        Assert.assertEquals(linearMol.getBondCount(), 16);
+        Assert.assertTrue(bondLengthRatio(linearMol) < 1.5, mode.name());
+
+        AbstractMolecule cyclic =
+            manipulator.merge(linear, a3group2, linear, a1group1);
+        Molecule cyclicMol = MolImporter.importMol(manipulator.convertMolecule(cyclic, StType.MOLFILE));
+        Assert.assertEquals(cyclicMol.getAtomCount(), 15);
+        Assert.assertEquals(cyclicMol.getBondCount(), 15);
+        Assert.assertTrue(bondLengthRatio(cyclicMol) < 1.5, mode.name());
+      }
+    } finally {
+      chemaxon.setLayoutMode(LayoutMode.FULL);
+    }
+  }
+
+  /**
+   * @return ratio of the longest to the shortest bond in 2D
+   */
+  private static double bondLengthRatio(Molecule molecule) {
+    double shortest = Double.MAX_VALUE;
+    double longest = 0;
+    for (MolBond bond : molecule.getBondArray()) {
+      double dx = bond.getAtom1().getX() - bond.getAtom2().getX();
+      double dy = bond.getAtom1().getY() - bond.getAtom2().getY();
+      double length = Math.sqrt(dx * dx + dy * dy);
+      shortest = Math.min(shortest, length);
+      longest = Math.max(longest, length);
+    }
+    return longest / shortest;
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void mergePlanTest() throws IOException, CTKException {
+    String a = "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|";
+    AbstractMolecule a1 = manipulator.getMolecule(a, null);
+    AbstractMolecule a2 = manipulator.getMolecule(a, null);
+    AbstractMolecule a3 = manipulator.getMolecule(a, null);
+    IAtomBase a1group1 = a1.getRGroupAtom(1, true);
+    IAtomBase a1group2 = a1.getRGroupAtom(2, true);
+    IAtomBase a2group1 = a2.getRGroupAtom(1, true);
+    IAtomBase a2group2 = a2.getRGroupAtom(2, true);
+    IAtomBase a3group1 = a3.getRGroupAtom(1, true);
+    IAtomBase a3group2 = a3.getRGroupAtom(2, true);
+    AbstractMolecule expected = manipulator.merge(a1, a1group2, a2, a2group1);
+    expected = manipulator.merge(expected, a2group2, a3, a3group1);
+    expected = manipulator.merge(expected, a3group2, expected, a1group1);
+
+    AbstractMolecule template = manipulator.getMolecule(a, null);
+    MergePlan plan = new MergePlan(manipulator);
+    int n1 = plan.addMonomer(template);
+    int n2 = plan.addMonomer(template);
+    int n3 = plan.addMonomer(template);
+    plan.addConnection(n1, 2, n2, 1);
+    plan.addConnection(n2, 2, n3, 1);
+    plan.addConnection(n3, 2, n1, 1);
+    MergePlan.Result result = plan.execute();
+
+    Assert.assertEquals(result.getSteps().size(), 3);
+    Assert.assertEquals(manipulator.canonicalize(manipulator.convertMolecule(result.getMolecule(), StType.SMILES)),
+        manipulator.canonicalize(manipulator.convertMolecule(expected, StType.SMILES)));
+    Assert.assertEquals(template.getIAtomArray().size(), 7);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void additiveMoleculeInfoTest() throws IOException, CTKException {
+    String smiles = "[*]NCC([*])=O |$_R1;;;;_R2;$|";
+    Attachment r1 = new Attachment("R1-H", "R1", "H", "[*][H] |$_R1;$|");
+    Attachment r2 = new Attachment("R2-OH", "R2", "OH", "O[*] |$;_R2$|");
+    AttachmentList attachments = new AttachmentList();
+    attachments.add(r1);
+    attachments.add(r2);
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+
+    AbstractMolecule gly1 = manipulator.getMolecule(smiles, attachments);
+    AbstractMolecule gly2 = manipulator.getMolecule(smiles, attachments);
+    IAtomBase gly1r1 = gly1.getRGroupAtom(1, true);
+    IAtomBase gly2r2 = gly2.getRGroupAtom(2, true);
+    AbstractMolecule dipeptide = manipulator.merge(gly1, gly1.getRGroupAtom(2, true), gly2, gly2.getRGroupAtom(1, true));
+    dipeptide = chemaxon.capRgroup(dipeptide, gly1r1, r1);
+    dipeptide = chemaxon.capRgroup(dipeptide, gly2r2, r2);
+    MoleculeInfo expected = manipulator.getMoleculeInfo(dipeptide);
+
+    AbstractMolecule template = manipulator.getMolecule(smiles, attachments);
+    MoleculeInfo info = new AdditiveMoleculeInfo(chemaxon).addMonomer("G", template).addMonomer("G", template)
+        .addConnection(r2, r1).getMoleculeInfo();
+
+    Assert.assertEquals(info.getMolecularFormula(), expected.getMolecularFormula());
+    Assert.assertEquals(info.getMolecularWeight(), expected.getMolecularWeight(), 1e-3);
+    Assert.assertEquals(info.getExactMass(), expected.getExactMass(), 1e-4);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void fuseMergeTest() throws IOException, CTKException {
+    String a = "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|";
+    AbstractMolecule a1 = manipulator.getMolecule(a, null);
+    AbstractMolecule a2 = a1.cloneMolecule();
+    AbstractMolecule merged = manipulator.merge(a1, a1.getRGroupAtom(2, true), a2, a2.getRGroupAtom(1, true));
+
+    Molecule molecule = (Molecule) merged.getMolecule();
+    Assert.assertEquals(merged.getIAtomArray().size(), 12);
+    Assert.assertEquals(molecule.getAtomCount(), 12);
+    Assert.assertEquals(merged.getIBondArray().size(), 11);
+    Assert.assertEquals(molecule.getBondCount(), 11);
+    for (IAtomBase atom : merged.getIAtomArray()) {
+      Assert.assertTrue(molecule.indexOf((MolAtom) atom.getMolAtom()) >= 0);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void singleParseConversionTest() throws CTKException {
+    String smiles = "CCOc1ccc(cc1-c1nc2c(CC)nn(C)c2c(=O)[nH]1)S(=O)(=O)N1CCN(C)CC1";
+    ConversionRequest request = new ConversionRequest(smiles, StType.SMILES, ConversionRequest.Output.CANONICAL_SMILES,
+        ConversionRequest.Output.MOLFILE, ConversionRequest.Output.MOLECULE_INFO).withImage(OutputType.PNG, 1000, 1000,
+            (int) Long.parseLong("D3D3D3", 16));
+    OperationStatistics statistics = ((ChemaxonManipulator) manipulator).getStatistics();
+    long count = statistics.getCount(OperationStatistics.Operation.CONVERT_REQUEST);
+    ConversionResult result = ((ChemaxonManipulator) manipulator).convert(request);
+    Assert.assertEquals(statistics.getCount(OperationStatistics.Operation.CONVERT_REQUEST), count + 1);
+
+    Assert.assertEquals(result.getCanonicalSmiles(), manipulator.canonicalize(smiles));
+    Assert.assertTrue(result.getMolFile().contains("M  END"));
+    Assert.assertEquals(result.getMoleculeInfo().getMolecularFormula(), "C21H28N6O4S");
+    Assert.assertTrue(result.getImage().length > 0);
+    Assert.assertNull(result.getSmiles());
+
+    try {
+      ((ChemaxonManipulator) manipulator).convert(new ConversionRequest("CC(C", StType.SMILES,
+          ConversionRequest.Output.MOLFILE));
+      Assert.fail("unbalanced branch accepted");
+    } catch (CTKSmilesException e) {
+      Assert.assertTrue(statistics.getErrors(OperationStatistics.Operation.CONVERT_REQUEST) > 0);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void metricsTest() throws CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    HistogramMetricsSink metrics = new HistogramMetricsSink();
+    chemaxon.setMetricsSink(metrics);
+    try {
+      manipulator.canonicalize("CCOc1ccc(cc1-c1nc2c(CC)nn(C)c2c(=O)[nH]1)S(=O)(=O)N1CCN(C)CC1");
+    } finally {
+      chemaxon.setMetricsSink(MetricsSink.NONE);
+    }
+    Assert.assertEquals(metrics.getCount(MetricsSink.Stage.PARSE), 1);
+    Assert.assertEquals(metrics.getCount(MetricsSink.Stage.CLEAN), 1);
+    Assert.assertEquals(metrics.getCount(MetricsSink.Stage.EXPORT), 1);
+    Assert.assertTrue(metrics.getPercentileNanos(MetricsSink.Stage.PARSE, 99) <= metrics
+        .getMaxNanos(MetricsSink.Stage.PARSE));
+    LOG.debug(metrics.toString());
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void operationStatisticsTest() throws Exception {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    OperationStatistics statistics = chemaxon.getStatistics();
+    long count = statistics.getCount(OperationStatistics.Operation.CANONICALIZE);
+    long errors = statistics.getErrors(OperationStatistics.Operation.CANONICALIZE);
+    manipulator.canonicalize("CCO");
+    try {
+      manipulator.canonicalize("C1CC(");
+    } catch (CTKException e) {
+      LOG.debug("invalid SMILES rejected");
+    }
+    Assert.assertEquals(statistics.getCount(OperationStatistics.Operation.CANONICALIZE), count + 2);
+    Assert.assertEquals(statistics.getErrors(OperationStatistics.Operation.CANONICALIZE), errors + 1);
+    Assert.assertEquals(statistics.getInFlight(OperationStatistics.Operation.CANONICALIZE), 0);
+    long p50 = statistics.getPercentileNanos(OperationStatistics.Operation.CANONICALIZE, 50);
+    long p99 = statistics.getPercentileNanos(OperationStatistics.Operation.CANONICALIZE, 99);
+    Assert.assertTrue(p50 > 0 && p50 <= p99);
+    Assert.assertTrue(p99 <= statistics.getMaxNanos(OperationStatistics.Operation.CANONICALIZE));
+
+    ObjectName name = ChemaxonManipulatorMonitor.register(chemaxon, "test");
+    try {
+      Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CacheLimit"),
+          chemaxon.getCacheLimit());
+    } finally {
+      ChemaxonManipulatorMonitor.unregister("test");
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void cacheLimitTest() throws CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    String a = "C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|";
+    AbstractMolecule monomer = manipulator.getMolecule(a, null);
+    chemaxon.clearCaches();
+    chemaxon.setCacheLimit(2);
+    try {
+      MoleculeInfo first = chemaxon.getMonomerInfo("A1", monomer);
+      chemaxon.getMonomerInfo("A2", monomer);
+      Assert.assertSame(chemaxon.getMonomerInfo("A1", monomer), first);
+      chemaxon.getMonomerInfo("A3", monomer);
+      Assert.assertEquals(chemaxon.getMonomerInfoCacheSize(), 2);
+      // A2 was used least recently and is evicted
+      Assert.assertSame(chemaxon.getMonomerInfo("A1", monomer), first);
+
+      chemaxon.setCacheLimit(1);
+      Assert.assertEquals(chemaxon.getMonomerInfoCacheSize(), 1);
+      Assert.assertSame(chemaxon.getMonomerInfo("A1", monomer), first);
+    } finally {
+      chemaxon.setCacheLimit(ChemaxonManipulator.DEFAULT_CACHE_LIMIT);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void slowOperationJournalTest() throws Exception {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    Path file = Files.createTempFile("slow", ".journal");
+    try {
+      chemaxon.setSlowOperationJournal(new SlowOperationJournal(file, 0, TimeUnit.MILLISECONDS));
+      try {
+        manipulator.canonicalize("CCO");
+        manipulator.convert("[*]C(=O)O |$_R1;;;$|", StType.SMILES);
+      } finally {
+        chemaxon.setSlowOperationJournal(null);
+      }
+      List<SlowOperationJournal.Entry> entries = SlowOperationJournal.read(file);
+      Assert.assertEquals(entries.size(), 2);
+      Assert.assertEquals(entries.get(1).getInput(), "[*]C(=O)O |$_R1;;;$|");
+
+      SlowOperationReplay.Report report = new SlowOperationReplay(chemaxon).replay(entries, 2, 3);
+      Assert.assertEquals(report.getCount(OperationStatistics.Operation.CONVERT), 3);
+      Assert.assertEquals(report.getErrors(OperationStatistics.Operation.CANONICALIZE), 0);
+      LOG.debug(report.toString());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void deadlineTest() throws CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    OperationStatistics statistics = chemaxon.getStatistics();
+    long timeouts = statistics.getTimeouts(OperationStatistics.Operation.CANONICALIZE);
+    try {
+      chemaxon.setDeadline(10, TimeUnit.SECONDS);
+      Assert.assertEquals(manipulator.canonicalize("OCC"), "CCO");
+
+      chemaxon.setDeadline(1, TimeUnit.NANOSECONDS);
+      try {
+        manipulator.canonicalize("CCOc1ccc(cc1-c1nc2c(CC)nn(C)c2c(=O)[nH]1)S(=O)(=O)N1CCN(C)CC1");
+        Assert.fail("deadline not applied");
+      } catch (CTKException e) {
+        LOG.debug(e.getMessage());
+      }
+    } finally {
+      chemaxon.setDeadline(0, TimeUnit.SECONDS);
+    }
+    Assert.assertEquals(statistics.getTimeouts(OperationStatistics.Operation.CANONICALIZE), timeouts + 1);
+
+    // a saturated executor rejects the call instead of starting another thread
+    ExecutorService busy = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    final CountDownLatch release = new CountDownLatch(1);
+    busy.submit(() -> {
+      release.await();
+      return null;
+    });
+    chemaxon.setDeadlineExecutor(busy);
+    chemaxon.setDeadline(10, TimeUnit.SECONDS);
+    try {
+      manipulator.canonicalize("OCC");
+      Assert.fail("saturated executor accepted the call");
+    } catch (CTKException e) {
+      Assert.assertTrue(e.getMessage().contains("rejected"));
+    } finally {
+      chemaxon.setDeadline(0, TimeUnit.SECONDS);
+      chemaxon.setDeadlineExecutor(null);
+      release.countDown();
+      busy.shutdown();
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void warmUpTest() throws CTKException {
+    ChemaxonManipulator chemaxon = new ChemaxonManipulator();
+    WarmUp.Result result = WarmUp.run(chemaxon, 3, WarmUp.DEFAULT_TOLERANCE);
+    Assert.assertTrue(result.getRounds().size() > 0 && result.getRounds().size() <= 3);
+    Assert.assertTrue(chemaxon.getStatistics().getCount(OperationStatistics.Operation.MERGE) > 0);
+    LOG.debug(result.toString());
+
+    ChemaxonManipulator quiet = new ChemaxonManipulator();
+    HistogramMetricsSink metrics = new HistogramMetricsSink();
+    quiet.setMetricsSink(metrics);
+    quiet.warmUp();
+    Assert.assertEquals(quiet.getStatistics().getCount(OperationStatistics.Operation.MERGE), 0);
+    Assert.assertEquals(metrics.getCount(MetricsSink.Stage.PARSE), 0);
+    Assert.assertEquals(quiet.canonicalize("OCC"), "CCO");
+    Assert.assertEquals(quiet.getStatistics().getCount(OperationStatistics.Operation.CANONICALIZE), 1);
+    Assert.assertEquals(metrics.getCount(MetricsSink.Stage.PARSE), 1);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void binaryCodecTest() throws IOException, CTKException {
+    AttachmentList attachments = new AttachmentList();
+    attachments.add(new Attachment("R1-H", "R1", "H", "[*][H] |$_R1;$|"));
+    attachments.add(new Attachment("R2-OH", "R2", "OH", "O[*] |$;_R2$|"));
+    AbstractMolecule molecule = manipulator.getMolecule("C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|", attachments);
+
+    byte[] data = ChemMoleculeCodec.encode((ChemMolecule) molecule);
+    AbstractMolecule decoded = ChemMoleculeCodec.decode(data);
+
+    Assert.assertTrue(data.length < manipulator.convertMolecule(molecule, StType.MOLFILE).length());
+    Assert.assertEquals(manipulator.canonicalize(manipulator.convertMolecule(decoded, StType.SMILES)),
+        manipulator.canonicalize(manipulator.convertMolecule(molecule, StType.SMILES)));
+    Assert.assertEquals(decoded.getAttachments().size(), 2);
+    Assert.assertEquals(decoded.getAttachments().get(1).getSmiles(), "O[*] |$;_R2$|");
+    Assert.assertNotNull(decoded.getRGroupAtom(2, true));
+
+    // the hydrogen of the aromatic nitrogen does not follow from the valence
+    AbstractMolecule indole = manipulator.getMolecule("Cc1cc2ccccc2[nH]1", null);
+    AbstractMolecule decodedIndole = ChemMoleculeCodec.decode(ChemMoleculeCodec.encode((ChemMolecule) indole));
+    Assert.assertEquals(manipulator.canonicalize(manipulator.convertMolecule(decodedIndole, StType.SMILES)),
+        manipulator.canonicalize(manipulator.convertMolecule(indole, StType.SMILES)));
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void persistentCacheTest() throws IOException, CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    Path directory = Files.createTempDirectory("conversions");
+    String smiles = "CCOc1ccc(cc1-c1nc2c(CC)nn(C)c2c(=O)[nH]1)S(=O)(=O)N1CCN(C)CC1";
+    String expected = manipulator.canonicalize(smiles);
+    try {
+      try (PersistentConversionCache cache = new PersistentConversionCache(directory, 1 << 20, 4096)) {
+        chemaxon.setPersistentCache(cache);
+        Assert.assertEquals(manipulator.canonicalize(smiles), expected);
+        for (int i = 0; i < 200; i++) {
+          cache.put(OperationStatistics.Operation.CONVERT, "SMILES", "smiles", "C" + i, "molfile " + i);
+        }
+        cache.compact();
+      } finally {
+        chemaxon.setPersistentCache(null);
+      }
+
+      try (PersistentConversionCache cache = new PersistentConversionCache(directory, 1 << 20, 4096)) {
+        Assert.assertEquals(cache.get(OperationStatistics.Operation.CANONICALIZE, "",
+            ChemaxonManipulator.DEFAULT_SMILES_IMPORT_FORMAT, smiles), expected);
+        Assert.assertNull(cache.get(OperationStatistics.Operation.CANONICALIZE, "", null, smiles));
+        Assert.assertEquals(cache.get(OperationStatistics.Operation.CONVERT, "SMILES", "smiles", "C42"), "molfile 42");
+        Assert.assertNull(cache.get(OperationStatistics.Operation.CONVERT, "MOLFILE", "smiles", "C42"));
+        Assert.assertEquals(cache.size(), 201);
+      }
+    } finally {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for (Path file : files) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void moleculeSnapshotTest() throws IOException, CTKException {
+    ChemMolecule molecule = (ChemMolecule) manipulator.getMolecule("[*]NCC([*])=O |$_R1;;;;_R2;$|", null);
+    MoleculeSnapshot snapshot = molecule.snapshot();
+
+    Assert.assertEquals(snapshot.getAtomCount(), molecule.getIAtomArray().size());
+    Assert.assertEquals(snapshot.getBondCount(), molecule.getIBondArray().size());
+    Assert.assertEquals(snapshot.countAtoms(6), 2);
+    int r1 = snapshot.findRgroup(1);
+    Assert.assertEquals(snapshot.getDegree(r1), 1);
+    Assert.assertEquals(snapshot.getAtno(snapshot.getNeighbor(r1, 0)), 7);
+    Assert.assertTrue(snapshot.findBond(r1, snapshot.getNeighbor(r1, 0)) >= 0);
+    Assert.assertEquals(snapshot.findRgroup(3), -1);
+    Assert.assertTrue(snapshot.isConnected());
+
+    molecule.removeINode(molecule.getRGroupAtom(1, true));
+    Assert.assertEquals(snapshot.getAtomCount(), molecule.getIAtomArray().size() + 1);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void smilesSyntaxTest() throws CTKException {
+    Assert.assertTrue(manipulator.validateSMILES("[*]N[C@@H](CC([*])=O)C([*])=O |$_R1;;;;;_R3;;;_R2;$|"));
+    Assert.assertTrue(manipulator.validateSMILES("ClC1=CC=C(Br)C=C1"));
+    Assert.assertTrue(manipulator.validateSMILES("C%10CCCCC%10"));
+    Assert.assertTrue(manipulator.validateSMILES("CCO\n"));
+    Assert.assertTrue(manipulator.validateSMILES("CCO\r\n"));
+    Assert.assertFalse(manipulator.validateSMILES("C1CC("));
+    Assert.assertFalse(manipulator.validateSMILES("C1CCC"));
+    Assert.assertFalse(manipulator.validateSMILES("C[NH3+"));
+    Assert.assertFalse(manipulator.validateSMILES("C()C"));
+    Assert.assertFalse(manipulator.validateSMILES("[*]CC |$_R1;;"));
+    Assert.assertFalse(manipulator.validateSMILES("not a smiles"));
+    try {
+      manipulator.convert("CC)C", StType.SMILES);
+      Assert.fail("syntax error not detected");
+    } catch (CTKSmilesException e) {
+      LOG.debug(e.getMessage());
+    }
+    try {
+      ((ChemaxonManipulator) manipulator).convert(new ConversionRequest("CC)C", StType.SMILES,
+          ConversionRequest.Output.CANONICAL_SMILES));
+      Assert.fail("syntax error not detected");
+    } catch (CTKSmilesException e) {
+      LOG.debug(e.getMessage());
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void importFormatTest() throws CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    Assert.assertEquals(chemaxon.getImportFormat(StType.SMILES), ChemaxonManipulator.DEFAULT_SMILES_IMPORT_FORMAT);
+    String molFile = manipulator.convert("[*]NCC([*])=O |$_R1;;;;_R2;$|", StType.SMILES);
+    String smiles = manipulator.convert(molFile, StType.MOLFILE);
+
+    chemaxon.setImportFormat(StType.MOLFILE, null);
+    try {
+      Assert.assertEquals(manipulator.convert(molFile, StType.MOLFILE), smiles);
+    } finally {
+      chemaxon.setImportFormat(StType.MOLFILE, ChemaxonManipulator.DEFAULT_MOLFILE_IMPORT_FORMAT);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void dedupIndexTest() throws IOException, CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    DedupIndex index = new DedupIndex(chemaxon);
+    Assert.assertEquals(index.register("CCO", 1), 1);
+    Assert.assertEquals(index.register("OCC", 2), 1);
+    Assert.assertEquals(index.lookup("C(O)C"), 1);
+    Assert.assertEquals(index.lookup("CCN"), DedupIndex.NO_ID);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      long[] ids = index.registerAll(Arrays.asList("NCC", "CCN", "c1ccccc1", "OCC"), 10, executor, 2);
+      Assert.assertEquals(ids[0], 10);
+      Assert.assertEquals(ids[1], 10);
+      Assert.assertEquals(ids[2], 12);
+      Assert.assertEquals(ids[3], 1);
+
+      // duplicates in different tasks get the id of the first occurrence
+      ids = index.registerAll(Arrays.asList("CCCl", "SC", "CS", "ClCC"), 20, executor, 2);
+      Assert.assertEquals(ids, new long[] {20, 21, 21, 20});
+    } finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(index.size(), 5);
+
+    Path file = Files.createTempFile("dedup", ".index");
+    try {
+      index.save(file);
+      DedupIndex loaded = DedupIndex.load(chemaxon, file);
+      Assert.assertEquals(loaded.size(), 5);
+      Assert.assertEquals(loaded.lookup("OCC"), 1);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void fingerprintIndexTest() throws IOException, CTKException {
+    FingerprintIndex index = new FingerprintIndex();
+    index.add("G", (ChemMolecule) manipulator.getMolecule("[*]NCC([*])=O |$_R1;;;;_R2;$|", null));
+    index.add("A", (ChemMolecule) manipulator.getMolecule("C[C@H](N[*])C([*])=O |$;;;_R1;;_R2;$|", null));
+    index.add("D", (ChemMolecule) manipulator.getMolecule("[*]N[C@@H](CC([*])=O)C([*])=O |$_R1;;;;;_R3;;;_R2;$|",
+        null));
+    index.add("Ade", (ChemMolecule) manipulator.getMolecule("[*]n1cnc2c1ncnc2N |r,$_R1;;;;;;;;;;;;$|", null));
+
+    ChemMolecule query = (ChemMolecule) manipulator.getMolecule("[*]C(=O)[C@@H](C)N[*] |$_R2;;;;;;_R1$|", null);
+    List<FingerprintIndex.Hit> hits = index.search(query, 2);
+    Assert.assertEquals(hits.size(), 2);
+    Assert.assertEquals(hits.get(0).getId(), "A");
+    Assert.assertEquals(hits.get(0).getSimilarity(), 1.0, 1e-9);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<FingerprintIndex.Hit> parallel = index.search(query, 2, executor, 2);
+      Assert.assertEquals(parallel.get(0).getId(), hits.get(0).getId());
+      Assert.assertEquals(parallel.get(1).getSimilarity(), hits.get(1).getSimilarity(), 1e-9);
+    } finally {
+      executor.shutdown();
+    }
+
+    long[] aromatic = PathFingerprint.generate((ChemMolecule) manipulator.getMolecule("c1ccccc1", null));
+    long[] kekule = PathFingerprint.generate((ChemMolecule) manipulator.getMolecule("C1=CC=CC=C1", null));
+    Assert.assertEquals(PathFingerprint.tanimoto(aromatic, kekule), 1.0, 1e-9);
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void molFileWriterTest() throws CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    String smiles = "[*]N[C@@H](CC([*])=O)C([*])=O |$_R1;;;;;_R3;;;_R2;$|";
+    String expected = chemaxon.canonicalize(smiles);
+    long writes = chemaxon.getStatistics().getCount(OperationStatistics.Operation.WRITE_MOLFILE);
+
+    StringWriter v2000 = new StringWriter();
+    chemaxon.writeMolFile(chemaxon.getMolecule(smiles, null), v2000, MolFileWriter.Version.AUTO);
+    Assert.assertEquals(chemaxon.getStatistics().getCount(OperationStatistics.Operation.WRITE_MOLFILE), writes + 1);
+    Assert.assertTrue(v2000.toString().contains("V2000"));
+    Assert.assertTrue(v2000.toString().contains("M  RGP  3"));
+    Assert.assertEquals(chemaxon.canonicalize(chemaxon.convert(v2000.toString(), StType.MOLFILE)), expected);
+
+    StringWriter v3000 = new StringWriter();
+    chemaxon.writeMolFile(chemaxon.getMolecule(smiles, null), v3000, MolFileWriter.Version.V3000);
+    Assert.assertTrue(v3000.toString().contains("M  V30 COUNTS 10 9 0 0"));
+    Assert.assertEquals(chemaxon.canonicalize(chemaxon.convert(v3000.toString(), StType.MOLFILE)), expected);
+
+    // nine charges take two property lines
+    String ions = "[NH4+].[NH4+].[NH4+].[NH4+].[NH4+].[NH4+].[NH4+].[NH4+].[NH4+]";
+    StringWriter charged = new StringWriter();
+    chemaxon.writeMolFile(chemaxon.getMolecule(ions, null), charged, MolFileWriter.Version.V2000);
+    Assert.assertTrue(charged.toString().contains("M  CHG  8"));
+    Assert.assertTrue(charged.toString().contains("M  CHG  1   9   1"));
+    Assert.assertEquals(chemaxon.canonicalize(chemaxon.convert(charged.toString(), StType.MOLFILE)),
+        chemaxon.canonicalize(ions));
+
+    // a radical is left to Marvin
+    AbstractMolecule radical = chemaxon.getMolecule("CC", null);
+    ((Molecule) radical.getMolecule()).getAtom(0).setRadical(MolAtom.RAD1);
+    StringWriter exported = new StringWriter();
+    chemaxon.writeMolFile(radical, exported, MolFileWriter.Version.AUTO);
+    Assert.assertTrue(exported.toString().contains("M  RAD"));
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void asyncServiceTest() throws InterruptedException {
+    try (ChemaxonAsyncService service = new ChemaxonAsyncService((ChemaxonManipulator) manipulator)) {
+      List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        futures.add(service.canonicalize(i % 2 == 0 ? "OCC" : "C(O)C"));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+      for (CompletableFuture<String> future : futures) {
+        Assert.assertEquals(future.join(), futures.get(0).join());
+      }
+      Assert.assertTrue(service.validateSMILES("CCO").join());
+
+      try {
+        service.canonicalize("C1CC(").get();
+        Assert.fail("invalid SMILES accepted");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof CTKException);
+      }
+    }
+  }
+
+  @Test(groups = {"MarvinTest"})
+  public void libraryEnumerationTest() throws IOException, CTKException {
+    ChemaxonManipulator chemaxon = (ChemaxonManipulator) manipulator;
+    AbstractMolecule scaffold = chemaxon.getMolecule("[*]c1ccc([*])cc1 |$_R1;;;;;_R2;;$|", null);
+    List<AbstractMolecule> first = new ArrayList<>();
+    for (String smiles : new String[] {"[*]C |$_R1;$|", "[*]N |$_R1;$|", "[*]O |$_R1;$|"}) {
+      first.add(chemaxon.getMolecule(smiles, null));
+    }
+    List<AbstractMolecule> second = new ArrayList<>();
+    for (String smiles : new String[] {"[*]Cl |$_R1;$|", "[*]F |$_R1;$|"}) {
+      second.add(chemaxon.getMolecule(smiles, null));
+    }
+    LibraryEnumeration library = new LibraryEnumeration(chemaxon, scaffold).addPosition(1, first, 1)
+        .addPosition(2, second, 1).setCanonicalSmiles(true);
+    Assert.assertEquals(library.size(), 6);
+
+    final Map<Long, String> products = new ConcurrentHashMap<>();
+    long count = library.enumerate(new Consumer<LibraryEnumeration.Product>() {
+      @Override
+      public void accept(LibraryEnumeration.Product product) {
+        products.put(product.getIndex(), product.getSmiles());
+      }
+    });
+    Assert.assertEquals(count, 6);
+    Assert.assertEquals(new HashSet<>(products.values()).size(), 6);
+    Assert.assertEquals(products.get(0L), chemaxon.canonicalize("Cc1ccc(Cl)cc1"));
+    Assert.assertEquals(products.get(5L), chemaxon.canonicalize("Oc1ccc(F)cc1"));
+    Assert.assertEquals(scaffold.getIAtomArray().size(), 8);
+  }
+
+}